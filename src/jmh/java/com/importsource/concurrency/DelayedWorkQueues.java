@@ -0,0 +1,13 @@
+package com.importsource.concurrency;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Delayed.DelayedWorkQueue是包内可见的，给基准测试开个口子
+ */
+public class DelayedWorkQueues {
+
+    public static BlockingQueue<Runnable> newQueue() {
+        return new Delayed.DelayedWorkQueue();
+    }
+}
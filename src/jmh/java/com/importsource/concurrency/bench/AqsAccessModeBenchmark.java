@@ -0,0 +1,68 @@
+package com.importsource.concurrency.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 同一份AQS代码，比较入队、出队时用plain/release写（默认）和全部用volatile写的差别，也就是放松访问模式省下的屏障。
+ * 访问模式由系统属性com.importsource.aqs.volatileLinks决定，是AQS.Node里的static final，
+ * 所以两种模式各用一个fork：allVolatile在fork的JVM参数里打开它，relaxed用默认值。
+ * 入队的路径只有抢锁的时候才走，要在多核上跑才有意义，用LockBenchmarks按1、2、4 ...个线程各跑一次；
+ * 单独跑的时候用-t指定线程数。
+ *
+ * java -jar target/benchmarks.jar AqsAccessModeBenchmark -t 8
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+@Threads(4)
+public class AqsAccessModeBenchmark {
+
+    @Param({"0", "50"})
+    public int work;
+
+    AqsBenchmark.AqsMutex mutex;
+
+    @Setup
+    public void setUp() {
+        mutex = new AqsBenchmark.AqsMutex();
+    }
+
+    private void lockUnlock() {
+        AqsBenchmark.AqsMutex m = mutex;
+        m.lock();
+        try {
+            if (work > 0)
+                Blackhole.consumeCPU(work);
+        } finally {
+            m.unlock();
+        }
+    }
+
+    @Benchmark
+    @Fork(1)
+    public void relaxed() {
+        lockUnlock();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dcom.importsource.aqs.volatileLinks=true")
+    public void allVolatile() {
+        lockUnlock();
+    }
+}
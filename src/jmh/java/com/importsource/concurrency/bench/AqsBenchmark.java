@@ -0,0 +1,125 @@
+package com.importsource.concurrency.bench;
+
+import com.importsource.concurrency.custom.aqs.AQS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+
+/**
+ * 用本项目的AQS和JDK的AbstractQueuedSynchronizer各写一个最简单的互斥锁，比较加锁解锁的开销。
+ * uncontended是单线程，看的是acquire/release本身的屏障开销；contended是多线程抢同一把锁，
+ * 走的是入队、park、unparkSuccessor的路径。work是临界区里消耗的CPU（Blackhole.consumeCPU的token数）。
+ *
+ * JDK17的AbstractQueuedSynchronizer已经是另一套算法了，和它比说明不了访问模式的作用，那个比较见AqsAccessModeBenchmark。
+ *
+ * java -jar target/benchmarks.jar AqsBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AqsBenchmark {
+
+    @Param({"AQS", "AbstractQueuedSynchronizer"})
+    public String impl;
+
+    @Param({"0", "50"})
+    public int work;
+
+    Mutex mutex;
+
+    interface Mutex {
+        void lock();
+
+        void unlock();
+    }
+
+    static final class AqsMutex extends AQS implements Mutex {
+        @Override
+        protected boolean tryAcquire(int arg) {
+            return compareAndSetState(0, 1);
+        }
+
+        @Override
+        protected boolean tryRelease(int arg) {
+            setState(0);
+            return true;
+        }
+
+        @Override
+        public void lock() {
+            acquire(1);
+        }
+
+        @Override
+        public void unlock() {
+            release(1);
+        }
+    }
+
+    static final class JdkMutex extends AbstractQueuedSynchronizer implements Mutex {
+        @Override
+        protected boolean tryAcquire(int arg) {
+            return compareAndSetState(0, 1);
+        }
+
+        @Override
+        protected boolean tryRelease(int arg) {
+            setState(0);
+            return true;
+        }
+
+        @Override
+        public void lock() {
+            acquire(1);
+        }
+
+        @Override
+        public void unlock() {
+            release(1);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        mutex = "AQS".equals(impl) ? new AqsMutex() : new JdkMutex();
+    }
+
+    private void lockUnlock() {
+        Mutex m = mutex;
+        m.lock();
+        try {
+            if (work > 0)
+                Blackhole.consumeCPU(work);
+        } finally {
+            m.unlock();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void uncontended() {
+        lockUnlock();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void contended() {
+        lockUnlock();
+    }
+}
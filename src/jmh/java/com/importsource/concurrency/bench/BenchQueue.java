@@ -0,0 +1,310 @@
+package com.importsource.concurrency.bench;
+
+import com.importsource.concurrency.DelayedWorkQueues;
+import com.importsource.concurrency.custom.queue.delay.CDelayQueue;
+import com.importsource.concurrency.custom.queue.delay.PrimitiveDelayQueue;
+import com.importsource.concurrency.custom.queue.delay.SkipListDelayQueue;
+import com.importsource.concurrency.custom.queue.delay.StripedDelayQueue;
+import com.importsource.concurrency.custom.queue.delay.Task;
+import com.importsource.concurrency.custom.queue.delay.TimingWheelDelayQueue;
+
+import java.util.AbstractCollection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把各个延迟队列包成同一组操作，这样所有的基准测试对每个实现跑的都是一样的代码。
+ * 新加一个实现只要在IMPLEMENTATIONS和create里加一项。
+ */
+public abstract class BenchQueue {
+
+    /**
+     * 和@Param里的名字一一对应
+     */
+    public static final String[] IMPLEMENTATIONS = {
+            "CDelayQueue", "DelayedWorkQueue", "DelayQueue",
+            "TimingWheelDelayQueue", "StripedDelayQueue", "PrimitiveDelayQueue",
+            "SkipListDelayQueue"
+    };
+
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    /**
+     * 放入一个delay纳秒后到期的元素，返回用于cancel的句柄
+     */
+    public abstract Object schedule(long delayNanos);
+
+    public abstract boolean cancel(Object handle);
+
+    public abstract Object take() throws InterruptedException;
+
+    /**
+     * 取走所有已经到期的元素（最多max个）
+     */
+    public abstract int drainExpired(int max);
+
+    public abstract int size();
+
+    public static BenchQueue create(String name) {
+        switch (name) {
+            case "CDelayQueue":
+                return new CustomQueue(new CDelayQueue<Task<Runnable>>());
+            case "TimingWheelDelayQueue":
+                return new CustomQueue(new TimingWheelDelayQueue<Task<Runnable>>());
+            case "StripedDelayQueue":
+                return new CustomQueue(new StripedDelayQueue<Task<Runnable>>());
+            case "SkipListDelayQueue":
+                return new CustomQueue(new SkipListDelayQueue<Task<Runnable>>());
+            case "DelayedWorkQueue":
+                return new WorkQueue(DelayedWorkQueues.newQueue());
+            case "DelayQueue":
+                return new JdkQueue(new DelayQueue<JdkElement>());
+            case "PrimitiveDelayQueue":
+                return new PrimitiveQueue(new PrimitiveDelayQueue<Runnable>());
+            default:
+                throw new IllegalArgumentException(name);
+        }
+    }
+
+    /**
+     * drainTo的目的地，只计数不保存
+     */
+    private static final class Sink extends AbstractCollection<Object> {
+        static final Sink INSTANCE = new Sink();
+
+        @Override
+        public boolean add(Object o) {
+            return true;
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            return Collections.emptyIterator();
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+    }
+
+    /**
+     * 本项目的Delayed，元素是Task
+     */
+    static final class CustomQueue extends BenchQueue {
+        private final BlockingQueue<Task<Runnable>> queue;
+
+        CustomQueue(BlockingQueue<Task<Runnable>> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public Object schedule(long delayNanos) {
+            Task<Runnable> task = new Task<>(delayNanos, NOOP);
+            queue.offer(task);
+            return task;
+        }
+
+        @Override
+        public boolean cancel(Object handle) {
+            return queue.remove(handle);
+        }
+
+        @Override
+        public Object take() throws InterruptedException {
+            return queue.take();
+        }
+
+        @Override
+        public int drainExpired(int max) {
+            return queue.drainTo(Sink.INSTANCE, max);
+        }
+
+        @Override
+        public int size() {
+            return queue.size();
+        }
+    }
+
+    /**
+     * ScheduledThreadPoolExecutor的队列，元素是RunnableScheduledFuture
+     */
+    static final class WorkQueue extends BenchQueue {
+        private final BlockingQueue<Runnable> queue;
+
+        WorkQueue(BlockingQueue<Runnable> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public Object schedule(long delayNanos) {
+            ScheduledElement e = new ScheduledElement(delayNanos);
+            queue.offer(e);
+            return e;
+        }
+
+        @Override
+        public boolean cancel(Object handle) {
+            return queue.remove(handle);
+        }
+
+        @Override
+        public Object take() throws InterruptedException {
+            return queue.take();
+        }
+
+        @Override
+        public int drainExpired(int max) {
+            return queue.drainTo(Sink.INSTANCE, max);
+        }
+
+        @Override
+        public int size() {
+            return queue.size();
+        }
+    }
+
+    static final class JdkQueue extends BenchQueue {
+        private final DelayQueue<JdkElement> queue;
+
+        JdkQueue(DelayQueue<JdkElement> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public Object schedule(long delayNanos) {
+            JdkElement e = new JdkElement(delayNanos);
+            queue.offer(e);
+            return e;
+        }
+
+        @Override
+        public boolean cancel(Object handle) {
+            return queue.remove(handle);
+        }
+
+        @Override
+        public Object take() throws InterruptedException {
+            return queue.take();
+        }
+
+        @Override
+        public int drainExpired(int max) {
+            return queue.drainTo(Sink.INSTANCE, max);
+        }
+
+        @Override
+        public int size() {
+            return queue.size();
+        }
+    }
+
+    static final class PrimitiveQueue extends BenchQueue {
+        private final PrimitiveDelayQueue<Runnable> queue;
+
+        PrimitiveQueue(PrimitiveDelayQueue<Runnable> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public Object schedule(long delayNanos) {
+            return queue.schedule(delayNanos, TimeUnit.NANOSECONDS, NOOP);
+        }
+
+        @Override
+        public boolean cancel(Object handle) {
+            return queue.cancel((Long) handle);
+        }
+
+        @Override
+        public Object take() throws InterruptedException {
+            return queue.take();
+        }
+
+        @Override
+        public int drainExpired(int max) {
+            return queue.drainTo(Sink.INSTANCE, max);
+        }
+
+        @Override
+        public int size() {
+            return queue.size();
+        }
+    }
+
+    private static final AtomicLong SEQUENCER = new AtomicLong();
+
+    /**
+     * java.util.concurrent.DelayQueue的元素
+     */
+    static class JdkElement implements Delayed {
+        final long time;
+        final long seq = SEQUENCER.getAndIncrement();
+
+        JdkElement(long delayNanos) {
+            this.time = System.nanoTime() + delayNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this)
+                return 0;
+            if (other instanceof JdkElement) {
+                JdkElement x = (JdkElement) other;
+                long diff = time - x.time;
+                if (diff != 0)
+                    return diff < 0 ? -1 : 1;
+                return seq < x.seq ? -1 : 1;
+            }
+            long d = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+            return (d == 0) ? 0 : ((d < 0) ? -1 : 1);
+        }
+    }
+
+    /**
+     * DelayedWorkQueue的元素，和ScheduledThreadPoolExecutor里的任务一样是一个FutureTask
+     */
+    static final class ScheduledElement extends FutureTask<Void> implements RunnableScheduledFuture<Void> {
+        private final JdkElement key;
+
+        ScheduledElement(long delayNanos) {
+            super(NOOP, null);
+            this.key = new JdkElement(delayNanos);
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return false;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return key.getDelay(unit);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this)
+                return 0;
+            if (other instanceof ScheduledElement)
+                return key.compareTo(((ScheduledElement) other).key);
+            return key.compareTo(other);
+        }
+    }
+}
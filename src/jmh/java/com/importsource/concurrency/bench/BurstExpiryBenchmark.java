@@ -0,0 +1,56 @@
+package com.importsource.concurrency.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 大量定时任务在同一时刻到期（比如整点），测一次把它们全部取出来要多久
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, batchSize = 1)
+@Measurement(iterations = 20, batchSize = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class BurstExpiryBenchmark {
+
+    @Param({"CDelayQueue", "DelayedWorkQueue", "DelayQueue",
+            "TimingWheelDelayQueue", "StripedDelayQueue", "PrimitiveDelayQueue",
+            "SkipListDelayQueue"})
+    public String impl;
+
+    @Param({"1000", "100000", "1000000"})
+    public int burst;
+
+    BenchQueue queue;
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        queue = BenchQueue.create(impl);
+        for (int i = 0; i < burst; i++)
+            queue.schedule(0);
+    }
+
+    /**
+     * 和TaskQueueDaemonThread一样，一次最多取1024个
+     */
+    @Benchmark
+    public int drainBurst() {
+        int n = 0;
+        while (n < burst)
+            n += queue.drainExpired(1024);
+        return n;
+    }
+}
@@ -0,0 +1,49 @@
+package com.importsource.concurrency.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 取消为主的负载，比如超时控制：大部分定时任务在到期之前就被取消了。
+ * 队列深度保持在depth不变。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Threads(1)
+@State(Scope.Thread)
+public class CancelBenchmark {
+
+    private final SplittableRandom random = new SplittableRandom(7);
+
+    /**
+     * 放一个新的元素马上取消它，被取消的元素在堆的中间
+     */
+    @Benchmark
+    public boolean scheduleThenCancel(QueueState state) {
+        return state.queue.cancel(state.queue.schedule(QueueState.farDelay(random)));
+    }
+
+    /**
+     * 随机取消一个已有的元素，再放一个新的顶替它
+     */
+    @Benchmark
+    public Object cancelRandomAndReplace(QueueState state) {
+        int i = random.nextInt(state.depth);
+        state.queue.cancel(state.handles[i]);
+        return state.handles[i] = state.queue.schedule(QueueState.farDelay(random));
+    }
+}
@@ -0,0 +1,52 @@
+package com.importsource.concurrency.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * 把所有延迟队列的基准测试跑一遍，结果写成JSON：
+ * offer按1、2、4 ... 64个生产者各跑一次，每次一个文件；其它的写进一个文件。
+ *
+ * java -cp target/benchmarks.jar com.importsource.concurrency.bench.DelayQueueBenchmarks [输出目录] [其它JMH参数]
+ *
+ * 比如只跑两个实现：... DelayQueueBenchmarks target/jmh -p impl=CDelayQueue,DelayQueue
+ */
+public class DelayQueueBenchmarks {
+
+    private static final int MAX_PRODUCERS = 64;
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        File dir = new File(args.length > 0 && !args[0].startsWith("-") ? args[0] : "target/jmh");
+        String[] jmhArgs = args.length > 0 && !args[0].startsWith("-")
+                ? java.util.Arrays.copyOfRange(args, 1, args.length) : args;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IllegalStateException("cannot create " + dir);
+        CommandLineOptions commandLine = new CommandLineOptions(jmhArgs);
+
+        for (int producers = 1; producers <= MAX_PRODUCERS; producers <<= 1) {
+            new Runner(options(commandLine, new File(dir, "offer-" + producers + "-producers.json"))
+                    .include(OfferBenchmark.class.getSimpleName())
+                    .threads(producers)
+                    .build()).run();
+        }
+        new Runner(options(commandLine, new File(dir, "take-cancel-burst.json"))
+                .include(TakeBenchmark.class.getSimpleName())
+                .include(CancelBenchmark.class.getSimpleName())
+                .include(BurstExpiryBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    private static ChainedOptionsBuilder options(CommandLineOptions commandLine, File result) {
+        return new OptionsBuilder()
+                .parent(commandLine)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result.getPath());
+    }
+}
@@ -0,0 +1,54 @@
+package com.importsource.concurrency.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * 把锁的基准测试按1、2、4 ... 个线程各跑一次（最多到CPU核数的2倍），每次一个JSON文件，看吞吐随线程数怎么变：
+ * ReadWriteLockBenchmark，AqsAccessModeBenchmark，以及AqsBenchmark的contended（uncontended固定单线程，不参加）。
+ *
+ * java -cp target/benchmarks.jar com.importsource.concurrency.bench.LockBenchmarks [输出目录] [其它JMH参数]
+ *
+ * 比如只跑纯读：... LockBenchmarks target/jmh -p writePermille=0（参数只属于一个基准测试时另一个不受影响）
+ */
+public class LockBenchmarks {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        File dir = new File(args.length > 0 && !args[0].startsWith("-") ? args[0] : "target/jmh");
+        String[] jmhArgs = args.length > 0 && !args[0].startsWith("-")
+                ? java.util.Arrays.copyOfRange(args, 1, args.length) : args;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IllegalStateException("cannot create " + dir);
+        CommandLineOptions commandLine = new CommandLineOptions(jmhArgs);
+
+        int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
+        for (int threads = 1; threads <= maxThreads; threads <<= 1) {
+            new Runner(options(commandLine, new File(dir, "rwlock-" + threads + "-threads.json"))
+                    .include(ReadWriteLockBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build()).run();
+            new Runner(options(commandLine, new File(dir, "aqs-modes-" + threads + "-threads.json"))
+                    .include(AqsAccessModeBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build()).run();
+            new Runner(options(commandLine, new File(dir, "aqs-" + threads + "-threads.json"))
+                    .include(AqsBenchmark.class.getSimpleName() + ".contended")
+                    .threads(threads)
+                    .build()).run();
+        }
+    }
+
+    private static ChainedOptionsBuilder options(CommandLineOptions commandLine, File result) {
+        return new OptionsBuilder()
+                .parent(commandLine)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result.getPath());
+    }
+}
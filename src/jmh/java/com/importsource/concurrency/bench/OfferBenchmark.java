@@ -0,0 +1,47 @@
+package com.importsource.concurrency.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多个生产者并发offer的吞吐量。生产者的个数用JMH的-t指定，DelayQueueBenchmarks会从1到64依次跑一遍。
+ * 每轮迭代换一个空队列，放进去的都是远期元素，不会有消费者。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class OfferBenchmark {
+
+    @Param({"CDelayQueue", "DelayedWorkQueue", "DelayQueue",
+            "TimingWheelDelayQueue", "StripedDelayQueue", "PrimitiveDelayQueue",
+            "SkipListDelayQueue"})
+    public String impl;
+
+    BenchQueue queue;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        queue = BenchQueue.create(impl);
+    }
+
+    @Benchmark
+    public Object offer() {
+        return queue.schedule(QueueState.FAR + ThreadLocalRandom.current().nextLong(QueueState.SPREAD));
+    }
+}
@@ -0,0 +1,54 @@
+package com.importsource.concurrency.bench;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 预先放了depth个远期元素的队列，这些元素在测试期间不会到期
+ */
+@State(Scope.Benchmark)
+public class QueueState {
+
+    /**
+     * 远期元素的最小延迟，保证测试期间不会到期
+     */
+    static final long FAR = TimeUnit.HOURS.toNanos(1);
+
+    /**
+     * 远期元素在 FAR ~ FAR + SPREAD 里均匀分布，堆不会退化成一条链
+     */
+    static final long SPREAD = TimeUnit.HOURS.toNanos(1);
+
+    @Param({"CDelayQueue", "DelayedWorkQueue", "DelayQueue",
+            "TimingWheelDelayQueue", "StripedDelayQueue", "PrimitiveDelayQueue",
+            "SkipListDelayQueue"})
+    public String impl;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int depth;
+
+    BenchQueue queue;
+
+    /**
+     * 预先放进去的元素的句柄
+     */
+    Object[] handles;
+
+    @Setup
+    public void setUp() {
+        queue = BenchQueue.create(impl);
+        handles = new Object[depth];
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < depth; i++)
+            handles[i] = queue.schedule(farDelay(random));
+    }
+
+    static long farDelay(SplittableRandom random) {
+        return FAR + random.nextLong(SPREAD);
+    }
+}
@@ -0,0 +1,73 @@
+package com.importsource.concurrency.bench;
+
+import com.importsource.concurrency.custom.aqs.BiasedReadWriteLock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 读多写少的场景下比较BiasedReadWriteLock和ReentrantReadWriteLock。每次操作按writePermille（千分比）的概率拿写锁，
+ * 否则拿读锁，临界区里读写一个long。writePermille为0时是纯读，看的是偏向的读者能不能避开state上的争用。
+ * 要看吞吐随线程数怎么变，用LockBenchmarks按1、2、4 ...个线程各跑一次；单独跑的时候用-t指定线程数。
+ *
+ * java -jar target/benchmarks.jar ReadWriteLockBenchmark -t 8
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReadWriteLockBenchmark {
+
+    @Param({"BiasedReadWriteLock", "ReentrantReadWriteLock"})
+    public String impl;
+
+    @Param({"0", "1", "10"})
+    public int writePermille;
+
+    ReadWriteLock lock;
+
+    long value;
+
+    @Setup
+    public void setUp() {
+        lock = "BiasedReadWriteLock".equals(impl) ? new BiasedReadWriteLock() : new ReentrantReadWriteLock();
+    }
+
+    @Benchmark
+    public void readMostly(Blackhole bh) {
+        if (writePermille > 0 && ThreadLocalRandom.current().nextInt(1000) < writePermille) {
+            Lock w = lock.writeLock();
+            w.lock();
+            try {
+                value++;
+            } finally {
+                w.unlock();
+            }
+        } else {
+            Lock r = lock.readLock();
+            r.lock();
+            try {
+                bh.consume(value);
+            } finally {
+                r.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.importsource.concurrency.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * take的延迟：在已经挂着depth个远期元素的队列里放一个立即到期的元素，再把它take出来。
+ * 用SampleTime模式，结果里有百分位数。
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Threads(1)
+public class TakeBenchmark {
+
+    @Benchmark
+    public Object offerThenTake(QueueState state) throws InterruptedException {
+        state.queue.schedule(0);
+        return state.queue.take();
+    }
+}
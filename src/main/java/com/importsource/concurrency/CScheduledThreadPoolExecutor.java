@@ -0,0 +1,415 @@
+package com.importsource.concurrency;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * A {@link ScheduledExecutorService} built on {@link Delayed.DelayedWorkQueue}
+ * and {@link ScheduledFutureTask}, following the design of
+ * {@link java.util.concurrent.ScheduledThreadPoolExecutor}.
+ *
+ * <p>Differences from the JDK class:
+ * <ul>
+ * <li>Cancelled tasks are removed from the queue immediately by default
+ * ({@link #setRemoveOnCancelPolicy}), in O(log n) via their heap index.
+ * <li>Core threads may time out: pass a keep-alive time to the
+ * constructor and idle core threads exit, to be restarted on demand.
+ * The core thread count can be changed at any time with
+ * {@link #setCorePoolSize}, but must stay positive.
+ * </ul>
+ *
+ * @author hezhuofan
+ */
+public class CScheduledThreadPoolExecutor
+        extends ThreadPoolExecutor implements ScheduledExecutorService {
+
+    /**
+     * False if should cancel/suppress periodic tasks on shutdown.
+     */
+    private volatile boolean continueExistingPeriodicTasksAfterShutdown;
+
+    /**
+     * False if should cancel non-periodic tasks on shutdown.
+     */
+    private volatile boolean executeExistingDelayedTasksAfterShutdown = true;
+
+    /**
+     * True if ScheduledFutureTask.cancel should remove from queue
+     */
+    private volatile boolean removeOnCancel = true;
+
+    /**
+     * Set by shutdownNow, which ThreadPoolExecutor does not let
+     * subclasses observe directly.
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Sequence number to break scheduling ties, and in turn to
+     * guarantee FIFO order among tied entries.
+     */
+    static final AtomicLong sequencer = new AtomicLong();
+
+    /**
+     * Creates a new executor with the given core pool size.
+     *
+     * @param corePoolSize the number of threads to keep in the pool
+     * @throws IllegalArgumentException if {@code corePoolSize <= 0}
+     */
+    public CScheduledThreadPoolExecutor(int corePoolSize) {
+        this(corePoolSize, 0, NANOSECONDS, Executors.defaultThreadFactory(), new AbortPolicy());
+    }
+
+    public CScheduledThreadPoolExecutor(int corePoolSize, ThreadFactory threadFactory) {
+        this(corePoolSize, 0, NANOSECONDS, threadFactory, new AbortPolicy());
+    }
+
+    public CScheduledThreadPoolExecutor(int corePoolSize, RejectedExecutionHandler handler) {
+        this(corePoolSize, 0, NANOSECONDS, Executors.defaultThreadFactory(), handler);
+    }
+
+    /**
+     * Creates a new executor with the given initial parameters.
+     *
+     * @param corePoolSize the number of threads to keep in the pool
+     * @param keepAliveTime when positive, idle core threads exit after
+     *        this long and are restarted when new tasks arrive; when zero,
+     *        core threads never time out
+     * @param unit the time unit for the {@code keepAliveTime} argument
+     * @param threadFactory the factory to use when the executor
+     *        creates a new thread
+     * @param handler the handler to use when execution is blocked
+     *        because the executor has been shut down
+     * @throws IllegalArgumentException if {@code corePoolSize <= 0}
+     *         or {@code keepAliveTime < 0}
+     */
+    public CScheduledThreadPoolExecutor(int corePoolSize, long keepAliveTime, TimeUnit unit,
+                                        ThreadFactory threadFactory,
+                                        RejectedExecutionHandler handler) {
+        super(checkCorePoolSize(corePoolSize), Integer.MAX_VALUE, keepAliveTime, unit,
+                new Delayed.DelayedWorkQueue(), threadFactory, handler);
+        if (keepAliveTime > 0)
+            allowCoreThreadTimeOut(true);
+    }
+
+    private static int checkCorePoolSize(int corePoolSize) {
+        if (corePoolSize <= 0)
+            throw new IllegalArgumentException();
+        return corePoolSize;
+    }
+
+    /**
+     * Returns current nanoTime.
+     */
+    final long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Returns true if can run a task given current run state
+     * and run-after-shutdown parameters.
+     *
+     * @param periodic true if this task periodic, false if delayed
+     */
+    boolean canRunInCurrentRunState(boolean periodic) {
+        if (!isShutdown())
+            return true;
+        if (stopped || isTerminated())
+            return false;
+        return periodic ?
+                continueExistingPeriodicTasksAfterShutdown :
+                executeExistingDelayedTasksAfterShutdown;
+    }
+
+    /**
+     * Main execution method for delayed or periodic tasks.  If pool
+     * is shut down, rejects the task. Otherwise adds task to queue
+     * and starts a thread, if necessary, to run it.  (We cannot
+     * prestart the thread to run the task because the task (probably)
+     * shouldn't be run yet.)  If the pool is shut down while the task
+     * is being added, cancel and remove it if required by state and
+     * run-after-shutdown parameters.
+     *
+     * @param task the task
+     */
+    private void delayedExecute(RunnableScheduledFuture<?> task) {
+        if (isShutdown())
+            getRejectedExecutionHandler().rejectedExecution(task, this);
+        else {
+            super.getQueue().add(task);
+            if (isShutdown() &&
+                    !canRunInCurrentRunState(task.isPeriodic()) &&
+                    remove(task))
+                task.cancel(false);
+            else
+                prestartCoreThread();
+        }
+    }
+
+    /**
+     * Requeues a periodic task unless current run state precludes it.
+     * Same idea as delayedExecute except drops task rather than rejecting.
+     *
+     * @param task the task
+     */
+    void reExecutePeriodic(RunnableScheduledFuture<?> task) {
+        if (canRunInCurrentRunState(true)) {
+            super.getQueue().add(task);
+            if (!canRunInCurrentRunState(true) && remove(task))
+                task.cancel(false);
+            else
+                prestartCoreThread();
+        }
+        else
+            task.cancel(false);
+    }
+
+    /**
+     * Cancels and clears the queue of all tasks that should not be run
+     * due to shutdown policy.
+     */
+    private void onShutdown() {
+        BlockingQueue<Runnable> q = super.getQueue();
+        boolean keepDelayed = executeExistingDelayedTasksAfterShutdown;
+        boolean keepPeriodic = continueExistingPeriodicTasksAfterShutdown;
+        if (!keepDelayed && !keepPeriodic) {
+            for (Object e : q.toArray())
+                if (e instanceof RunnableScheduledFuture<?>)
+                    ((RunnableScheduledFuture<?>) e).cancel(false);
+            q.clear();
+        }
+        else {
+            // Traverse snapshot to avoid iterator exceptions
+            for (Object e : q.toArray()) {
+                if (e instanceof RunnableScheduledFuture) {
+                    RunnableScheduledFuture<?> t =
+                            (RunnableScheduledFuture<?>)e;
+                    if ((t.isPeriodic() ? !keepPeriodic : !keepDelayed) ||
+                            t.isCancelled()) { // also remove if already cancelled
+                        if (q.remove(t))
+                            t.cancel(false);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Modifies or replaces the task used to execute a runnable.
+     * This method can be used to override the concrete
+     * class used for managing internal tasks.
+     * The default implementation simply returns the given task.
+     */
+    protected <V> RunnableScheduledFuture<V> decorateTask(
+            Runnable runnable, RunnableScheduledFuture<V> task) {
+        return task;
+    }
+
+    /**
+     * Modifies or replaces the task used to execute a callable.
+     * The default implementation simply returns the given task.
+     */
+    protected <V> RunnableScheduledFuture<V> decorateTask(
+            Callable<V> callable, RunnableScheduledFuture<V> task) {
+        return task;
+    }
+
+    /**
+     * Returns the trigger time of a delayed action.
+     */
+    private long triggerTime(long delay, TimeUnit unit) {
+        return triggerTime(unit.toNanos((delay < 0) ? 0 : delay));
+    }
+
+    /**
+     * Returns the trigger time of a delayed action.
+     */
+    long triggerTime(long delay) {
+        return now() +
+                ((delay < (Long.MAX_VALUE >> 1)) ? delay : overflowFree(delay));
+    }
+
+    /**
+     * Constrains the values of all delays in the queue to be within
+     * Long.MAX_VALUE of each other, to avoid overflow in compareTo.
+     * This may occur if a task is eligible to be dequeued, but has
+     * not yet been, while some other task is added with a delay of
+     * Long.MAX_VALUE.
+     */
+    private long overflowFree(long delay) {
+        java.util.concurrent.Delayed head = (java.util.concurrent.Delayed) super.getQueue().peek();
+        if (head != null) {
+            long headDelay = head.getDelay(NANOSECONDS);
+            if (headDelay < 0 && (delay - headDelay < 0))
+                delay = Long.MAX_VALUE + headDelay;
+        }
+        return delay;
+    }
+
+    public ScheduledFuture<?> schedule(Runnable command,
+                                       long delay,
+                                       TimeUnit unit) {
+        if (command == null || unit == null)
+            throw new NullPointerException();
+        RunnableScheduledFuture<?> t = decorateTask(command,
+                new ScheduledFutureTask<Void>(command, null,
+                        triggerTime(delay, unit), this));
+        delayedExecute(t);
+        return t;
+    }
+
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable,
+                                           long delay,
+                                           TimeUnit unit) {
+        if (callable == null || unit == null)
+            throw new NullPointerException();
+        RunnableScheduledFuture<V> t = decorateTask(callable,
+                new ScheduledFutureTask<V>(callable,
+                        triggerTime(delay, unit), this));
+        delayedExecute(t);
+        return t;
+    }
+
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                  long initialDelay,
+                                                  long period,
+                                                  TimeUnit unit) {
+        if (command == null || unit == null)
+            throw new NullPointerException();
+        if (period <= 0)
+            throw new IllegalArgumentException();
+        ScheduledFutureTask<Void> sft =
+                new ScheduledFutureTask<Void>(command,
+                        null,
+                        triggerTime(initialDelay, unit),
+                        unit.toNanos(period), this);
+        RunnableScheduledFuture<Void> t = decorateTask(command, sft);
+        sft.outerTask = t;
+        delayedExecute(t);
+        return t;
+    }
+
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+                                                     long initialDelay,
+                                                     long delay,
+                                                     TimeUnit unit) {
+        if (command == null || unit == null)
+            throw new NullPointerException();
+        if (delay <= 0)
+            throw new IllegalArgumentException();
+        ScheduledFutureTask<Void> sft =
+                new ScheduledFutureTask<Void>(command,
+                        null,
+                        triggerTime(initialDelay, unit),
+                        unit.toNanos(-delay), this);
+        RunnableScheduledFuture<Void> t = decorateTask(command, sft);
+        sft.outerTask = t;
+        delayedExecute(t);
+        return t;
+    }
+
+    /**
+     * Executes {@code command} with zero required delay.
+     */
+    public void execute(Runnable command) {
+        schedule(command, 0, NANOSECONDS);
+    }
+
+    public Future<?> submit(Runnable task) {
+        return schedule(task, 0, NANOSECONDS);
+    }
+
+    public <T> Future<T> submit(Runnable task, T result) {
+        return schedule(Executors.callable(task, result), 0, NANOSECONDS);
+    }
+
+    public <T> Future<T> submit(Callable<T> task) {
+        return schedule(task, 0, NANOSECONDS);
+    }
+
+    /**
+     * The queue only hands out expired tasks, so the pool never grows
+     * beyond its core threads; the core size must stay positive because
+     * there is no other way to start a worker for a queued task.
+     *
+     * @throws IllegalArgumentException if {@code corePoolSize <= 0}
+     */
+    public void setCorePoolSize(int corePoolSize) {
+        super.setCorePoolSize(checkCorePoolSize(corePoolSize));
+    }
+
+    public void setContinueExistingPeriodicTasksAfterShutdownPolicy(boolean value) {
+        continueExistingPeriodicTasksAfterShutdown = value;
+        if (!value && isShutdown())
+            onShutdown();
+    }
+
+    public boolean getContinueExistingPeriodicTasksAfterShutdownPolicy() {
+        return continueExistingPeriodicTasksAfterShutdown;
+    }
+
+    public void setExecuteExistingDelayedTasksAfterShutdownPolicy(boolean value) {
+        executeExistingDelayedTasksAfterShutdown = value;
+        if (!value && isShutdown())
+            onShutdown();
+    }
+
+    public boolean getExecuteExistingDelayedTasksAfterShutdownPolicy() {
+        return executeExistingDelayedTasksAfterShutdown;
+    }
+
+    /**
+     * Sets the policy on whether cancelled tasks should be immediately
+     * removed from the work queue at time of cancellation.  This value
+     * is by default {@code true}.
+     */
+    public void setRemoveOnCancelPolicy(boolean value) {
+        removeOnCancel = value;
+    }
+
+    public boolean getRemoveOnCancelPolicy() {
+        return removeOnCancel;
+    }
+
+    /**
+     * Initiates an orderly shutdown in which previously submitted
+     * tasks are executed, but no new tasks will be accepted.
+     *
+     * <p>ThreadPoolExecutor's own onShutdown hook is not visible
+     * outside java.util.concurrent, so the queue is cleaned here and
+     * {@code super.shutdown()} is called a second time to wake idle
+     * workers blocked on tasks that have just been removed.
+     */
+    public void shutdown() {
+        super.shutdown();
+        onShutdown();
+        super.shutdown();
+    }
+
+    public List<Runnable> shutdownNow() {
+        stopped = true;
+        return super.shutdownNow();
+    }
+
+    /**
+     * Returns the task queue used by this executor.  Each element of
+     * this queue is a {@link ScheduledFuture}.
+     */
+    public BlockingQueue<Runnable> getQueue() {
+        return super.getQueue();
+    }
+}
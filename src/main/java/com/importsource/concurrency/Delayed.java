@@ -208,6 +208,81 @@ public class Delayed {
             return offer(e);
         }
 
+        /**
+         * Inserts all elements of the given collection under a single
+         * lock acquisition, for restoring or migrating a scheduler.
+         * The array is grown once to fit the whole batch.  When the
+         * batch is at least as large as the current queue the elements
+         * are appended and the heap is rebuilt bottom-up (Floyd), which
+         * is O(n) instead of O(k log n); a small batch is sifted up one
+         * element at a time.  Waiting threads are signalled only if the
+         * head changed.
+         *
+         * @throws NullPointerException if c or any of its elements is null
+         * @throws ClassCastException if an element is not a
+         *         RunnableScheduledFuture
+         * @throws IllegalArgumentException if c is this queue
+         */
+        public boolean addAll(Collection<? extends Runnable> c) {
+            if (c == null)
+                throw new NullPointerException();
+            if (c == this)
+                throw new IllegalArgumentException();
+            Object[] a = c.toArray();
+            int n = a.length;
+            if (n == 0)
+                return false;
+            RunnableScheduledFuture<?>[] es = new RunnableScheduledFuture<?>[n];
+            for (int i = 0; i < n; i++) {
+                if (a[i] == null)
+                    throw new NullPointerException();
+                es[i] = (RunnableScheduledFuture<?>)a[i];
+            }
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                int s = size;
+                if (n > Integer.MAX_VALUE - s)
+                    throw new OutOfMemoryError();
+                int newSize = s + n;
+                if (newSize > queue.length) {
+                    int grown = queue.length + (queue.length >> 1); // grow 50%
+                    queue = Arrays.copyOf(queue, (grown < newSize || grown < 0) ? newSize : grown);
+                }
+                RunnableScheduledFuture<?> head = queue[0];
+                if (n >= s) {
+                    System.arraycopy(es, 0, queue, s, n);
+                    size = newSize;
+                    heapify();
+                } else {
+                    for (int i = 0; i < n; i++) {
+                        size = s + i + 1;
+                        siftUp(s + i, es[i]);
+                    }
+                }
+                if (queue[0] != head) {
+                    leader = null;
+                    available.signal();
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Establishes the heap invariant over the whole array, assuming
+         * nothing about the order of elements, and sets every
+         * heapIndex.  Call only when holding lock.
+         */
+        private void heapify() {
+            int n = size;
+            for (int i = (n >>> 1); i < n; i++)
+                setIndex(queue[i], i);
+            for (int i = (n >>> 1) - 1; i >= 0; i--)
+                siftDown(i, queue[i]);
+        }
+
         /**
          * Performs common bookkeeping for poll and take: Replaces
          * first element with last and sifts it down.  Call only when
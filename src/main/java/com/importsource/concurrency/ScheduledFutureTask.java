@@ -1,8 +1,143 @@
 package com.importsource.concurrency;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
 /**
+ * The task type queued in {@link Delayed.DelayedWorkQueue} by
+ * {@link CScheduledThreadPoolExecutor}. It remembers its slot in the
+ * heap so that cancellation can remove it in O(log n).
+ *
  * @author hezhuofan
  */
-public class ScheduledFutureTask {
-    public int heapIndex;
+public class ScheduledFutureTask<V>
+        extends FutureTask<V> implements RunnableScheduledFuture<V> {
+
+    /** Sequence number to break ties FIFO */
+    private final long sequenceNumber;
+
+    /** The time the task is enabled to execute in nanoTime units */
+    private long time;
+
+    /**
+     * Period in nanoseconds for repeating tasks.  A positive
+     * value indicates fixed-rate execution.  A negative value
+     * indicates fixed-delay execution.  A value of 0 indicates a
+     * non-repeating task.
+     */
+    private final long period;
+
+    /** The executor this task belongs to */
+    private final CScheduledThreadPoolExecutor executor;
+
+    /** The actual task to be re-enqueued by reExecutePeriodic */
+    RunnableScheduledFuture<V> outerTask = this;
+
+    /**
+     * Index into delay queue, to support faster cancellation.
+     */
+    int heapIndex = -1;
+
+    /**
+     * Creates a one-shot action with given nanoTime-based trigger time.
+     */
+    ScheduledFutureTask(Runnable r, V result, long ns, CScheduledThreadPoolExecutor executor) {
+        this(r, result, ns, 0, executor);
+    }
+
+    /**
+     * Creates a periodic action with given nano time and period.
+     */
+    ScheduledFutureTask(Runnable r, V result, long ns, long period, CScheduledThreadPoolExecutor executor) {
+        super(r, result);
+        this.time = ns;
+        this.period = period;
+        this.executor = executor;
+        this.sequenceNumber = CScheduledThreadPoolExecutor.sequencer.getAndIncrement();
+    }
+
+    /**
+     * Creates a one-shot action with given nanoTime-based trigger time.
+     */
+    ScheduledFutureTask(Callable<V> callable, long ns, CScheduledThreadPoolExecutor executor) {
+        super(callable);
+        this.time = ns;
+        this.period = 0;
+        this.executor = executor;
+        this.sequenceNumber = CScheduledThreadPoolExecutor.sequencer.getAndIncrement();
+    }
+
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(time - System.nanoTime(), NANOSECONDS);
+    }
+
+    public int compareTo(java.util.concurrent.Delayed other) {
+        if (other == this) // compare zero if same object
+            return 0;
+        if (other instanceof ScheduledFutureTask) {
+            ScheduledFutureTask<?> x = (ScheduledFutureTask<?>)other;
+            long diff = time - x.time;
+            if (diff < 0)
+                return -1;
+            else if (diff > 0)
+                return 1;
+            else if (sequenceNumber < x.sequenceNumber)
+                return -1;
+            else
+                return 1;
+        }
+        long diff = getDelay(NANOSECONDS) - other.getDelay(NANOSECONDS);
+        return (diff < 0) ? -1 : (diff > 0) ? 1 : 0;
+    }
+
+    /**
+     * Returns {@code true} if this is a periodic (not a one-shot) action.
+     *
+     * @return {@code true} if periodic
+     */
+    public boolean isPeriodic() {
+        return period != 0;
+    }
+
+    /**
+     * Sets the next time to run for a periodic task.
+     */
+    private void setNextRunTime() {
+        long p = period;
+        if (p > 0)
+            time += p;
+        else
+            time = executor.triggerTime(-p);
+    }
+
+    /**
+     * Removes the task from the queue right away when the executor's
+     * remove-on-cancel policy is set, so that cancelled timeouts do not
+     * pile up in the heap until their delay elapses.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled && executor.getRemoveOnCancelPolicy() && heapIndex >= 0)
+            executor.remove(this);
+        return cancelled;
+    }
+
+    /**
+     * Overrides FutureTask version so as to reset/requeue if periodic.
+     */
+    public void run() {
+        boolean periodic = isPeriodic();
+        if (!executor.canRunInCurrentRunState(periodic))
+            cancel(false);
+        else if (!periodic)
+            super.run();
+        else if (super.runAndReset()) {
+            setNextRunTime();
+            executor.reExecutePeriodic(outerTask);
+        }
+    }
 }
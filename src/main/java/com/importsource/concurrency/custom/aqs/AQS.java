@@ -1,11 +1,12 @@
 package com.importsource.concurrency.custom.aqs;
 
-import sun.misc.Unsafe;
-
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.*;
 
 /**
@@ -51,6 +52,21 @@ public abstract class AQS
 
             AQS.Node nextWaiter;
 
+            /**
+             * When profiling, the nanoTime at which unparkSuccessor
+             * signalled this node, or 0.  Read and cleared by the node's
+             * own thread after it wakes up.
+             */
+            long signalTime;
+
+            /**
+             * The profiler that counted this node as enqueued, or null.
+             * Written before the node is published by the tail CAS, so
+             * a dequeue is only counted by the profiler that saw the
+             * matching enqueue.
+             */
+            AQSProfiler profiledBy;
+
 
             final boolean isShared() {
                 return nextWaiter == SHARED;
@@ -76,12 +92,74 @@ public abstract class AQS
 
             Node(Thread thread, AQS.Node mode) {     // Used by addWaiter
                 this.nextWaiter = mode;
-                this.thread = thread;
+                if (VOLATILE_LINKS)
+                    this.thread = thread;
+                else
+                    THREAD.set(this, thread);
             }
 
             Node(Thread thread, int waitStatus) { // Used by Condition
-                this.waitStatus = waitStatus;
-                this.thread = thread;
+                if (VOLATILE_LINKS) {
+                    this.waitStatus = waitStatus;
+                    this.thread = thread;
+                } else {
+                    WAITSTATUS.set(this, waitStatus);
+                    THREAD.set(this, thread);
+                }
+            }
+
+            /*
+             * Writes whose ordering is provided by something else go
+             * through the helpers below, shared by AQS and AQLS.  Fields
+             * written before the node is published by the CAS of tail
+             * use plain writes, next links use release writes, and
+             * help-GC unlinking uses plain writes.  Setting the system
+             * property com.importsource.aqs.volatileLinks to true makes
+             * all of them volatile writes, as before the VarHandle port,
+             * so the two can be compared with the same code.  The flag is
+             * static final, so the JIT folds the branch away.
+             */
+
+            /** Whether the helpers below use volatile writes. */
+            static final boolean VOLATILE_LINKS =
+                    Boolean.getBoolean("com.importsource.aqs.volatileLinks");
+
+            /** Sets prev before the node is published by the CAS of tail. */
+            final void initPrev(AQS.Node p) {
+                if (VOLATILE_LINKS)
+                    prev = p;
+                else
+                    PREV.set(this, p);
+            }
+
+            /**
+             * Links the successor.  Readers that do not see it yet fall
+             * back to the prev chain from tail.
+             */
+            final void linkNext(AQS.Node s) {
+                if (VOLATILE_LINKS)
+                    next = s;
+                else
+                    NEXT.setRelease(this, s);
+            }
+
+            /** Unlinks next of an old head, only to help GC. */
+            final void unlinkNext() {
+                if (VOLATILE_LINKS)
+                    next = null;
+                else
+                    NEXT.set(this, null);
+            }
+
+            /** Clears thread and prev of a node that has become head. */
+            final void clearForHead() {
+                if (VOLATILE_LINKS) {
+                    thread = null;
+                    prev = null;
+                } else {
+                    THREAD.set(this, null);
+                    PREV.set(this, null);
+                }
             }
         }
 
@@ -104,6 +182,12 @@ public abstract class AQS
          */
         private volatile int state;
 
+        /**
+         * Contention profiler, or null when profiling is disabled, which
+         * costs one volatile read on the instrumented paths.
+         */
+        private transient volatile AQSProfiler profiler;
+
         /**
          * Returns the current value of synchronization state.
          * This operation has memory semantics of a {@code volatile} read.
@@ -134,8 +218,7 @@ public abstract class AQS
          *         value was not equal to the expected value.
          */
         protected final boolean compareAndSetState(int expect, int update) {
-            // See below for intrinsics setup to support this
-            return unsafe.compareAndSwapInt(this, stateOffset, expect, update);
+            return STATE.compareAndSet(this, expect, update);
         }
 
         // Queuing utilities
@@ -159,9 +242,13 @@ public abstract class AQS
                     if (compareAndSetHead(new AQS.Node()))
                         tail = head;
                 } else {
-                    node.prev = t;
+                    AQSProfiler pf = profiler;
+                    node.profiledBy = pf;
+                    node.initPrev(t);
                     if (compareAndSetTail(t, node)) {
-                        t.next = node;
+                        t.linkNext(node);
+                        if (pf != null)
+                            pf.enqueued();
                         return t;
                     }
                 }
@@ -179,9 +266,13 @@ public abstract class AQS
             // Try the fast path of enq; backup to full enq on failure
             AQS.Node pred = tail;
             if (pred != null) {
-                node.prev = pred;
+                AQSProfiler pf = profiler;
+                node.profiledBy = pf;
+                node.initPrev(pred);
                 if (compareAndSetTail(pred, node)) {
-                    pred.next = node;
+                    pred.linkNext(node);
+                    if (pf != null)
+                        pf.enqueued();
                     return node;
                 }
             }
@@ -198,8 +289,10 @@ public abstract class AQS
          */
         private void setHead(AQS.Node node) {
             head = node;
-            node.thread = null;
-            node.prev = null;
+            node.clearForHead();
+            AQSProfiler pf = profiler;
+            if (pf != null)
+                pf.dequeued(node);
         }
 
         /**
@@ -230,8 +323,12 @@ public abstract class AQS
                     if (t.waitStatus <= 0)
                         s = t;
             }
-            if (s != null)
+            if (s != null) {
+                AQSProfiler pf = profiler;
+                if (pf != null)
+                    pf.unparked(s);
                 LockSupport.unpark(s.thread);
+            }
         }
 
         /**
@@ -317,6 +414,9 @@ public abstract class AQS
                 return;
 
             node.thread = null;
+            AQSProfiler pf = profiler;
+            if (pf != null)
+                pf.dequeued(node);
 
             // Skip cancelled predecessors
             AQS.Node pred = node.prev;
@@ -380,7 +480,7 @@ public abstract class AQS
                 do {
                     node.prev = pred = pred.prev;
                 } while (pred.waitStatus > 0);
-                pred.next = node;
+                pred.linkNext(node);
             } else {
                 /*
                  * waitStatus must be 0 or PROPAGATE.  Indicate that we
@@ -402,13 +502,128 @@ public abstract class AQS
         /**
          * Convenience method to park and then check if interrupted
          *
+         * @param node the node of the current thread
          * @return {@code true} if interrupted
          */
-        private final boolean parkAndCheckInterrupt() {
-            LockSupport.park(this);
+        private final boolean parkAndCheckInterrupt(AQS.Node node) {
+            AQSProfiler pf = profiler;
+            if (pf == null)
+                LockSupport.park(this);
+            else {
+                pf.parked();
+                LockSupport.park(this);
+                pf.woke(node);
+            }
             return Thread.interrupted();
         }
 
+        /**
+         * Timed park for the acquire methods with a timeout.
+         *
+         * @param node the node of the current thread
+         * @param nanosTimeout the maximum number of nanoseconds to park
+         */
+        private void parkNanos(AQS.Node node, long nanosTimeout) {
+            AQSProfiler pf = profiler;
+            if (pf == null)
+                LockSupport.parkNanos(this, nanosTimeout);
+            else {
+                pf.parked();
+                LockSupport.parkNanos(this, nanosTimeout);
+                pf.woke(node);
+            }
+        }
+
+        /*
+         * Adaptive spinning.  For very short critical sections the
+         * park/unpark round trip costs more than the lock is held, so the
+         * first queued thread spins for a while, retrying tryAcquire,
+         * before it parks for the first time.  Only the thread whose
+         * predecessor is head spins, so there is at most one spinner per
+         * synchronizer.  The spin budget is kept per instance: when a
+         * spin succeeds after s spins (roughly the hold time that was
+         * left), the budget moves halfway towards 2s; when it fails (the
+         * hold time or handoff outlasted it) the budget is halved.  Spins
+         * back off exponentially between tryAcquire calls so the spinner
+         * does not hammer the state word.  The budget adapts only to
+         * spin outcomes: the spins a successful spinner needed are a
+         * direct measure of the hold time plus handoff that was left, and
+         * no clock is read on the fast path.  At most NCPU - 1 threads
+         * spin at once across all AQS and AQLS instances, so nobody spins
+         * on a uniprocessor, and spinners can never take every processor
+         * away from the owners they are waiting for.  This is a local
+         * signal that reacts immediately, unlike the system load average.
+         */
+
+        /** Floor of the per-instance spin budget, so it can grow again. */
+        static final int MIN_SPINS = 16;
+
+        /** Ceiling of the per-instance spin budget. */
+        static final int MAX_SPINS = 1 << 12;
+
+        /** Largest number of onSpinWait calls between two tryAcquire calls. */
+        static final int MAX_BACKOFF = 64;
+
+        /**
+         * Current spin budget, in onSpinWait calls.  Written racily by
+         * spinners; it is only a hint.
+         */
+        private transient int spinLimit = 256;
+
+        /**
+         * Spins, retrying tryAcquire with exponential backoff, for up to
+         * the current spin budget, and adapts the budget to the outcome.
+         *
+         * @param arg the acquire argument
+         * @return {@code true} if acquired
+         */
+        private boolean spinAcquire(int arg) {
+            if (!Spinners.enter())
+                return false;
+            try {
+                int limit = Math.max(spinLimit, MIN_SPINS);
+                int spins = 0;
+                for (int backoff = 1; spins < limit; ) {
+                    for (int i = 0; i < backoff && spins < limit; i++, spins++)
+                        Thread.onSpinWait();
+                    if (tryAcquire(arg)) {
+                        int target = Math.min(spins << 1, MAX_SPINS);
+                        spinLimit = Math.max((limit + target) >>> 1, MIN_SPINS);
+                        return true;
+                    }
+                    if (backoff < MAX_BACKOFF)
+                        backoff <<= 1;
+                }
+                spinLimit = Math.max(limit >>> 1, MIN_SPINS);
+                return false;
+            } finally {
+                Spinners.exit();
+            }
+        }
+
+        /**
+         * Counts the threads currently spinning in spinAcquire of any AQS
+         * or AQLS, and admits a new spinner only while fewer than NCPU - 1
+         * are spinning.  Touched once per spin attempt, never on the
+         * uncontended path.
+         */
+        static final class Spinners {
+            static final int MAX_ACTIVE = Runtime.getRuntime().availableProcessors() - 1;
+            private static final AtomicInteger ACTIVE = new AtomicInteger();
+
+            static boolean enter() {
+                for (int c; (c = ACTIVE.get()) < MAX_ACTIVE; ) {
+                    if (ACTIVE.compareAndSet(c, c + 1))
+                        return true;
+                }
+                return false;
+            }
+
+            static void exit() {
+                ACTIVE.getAndDecrement();
+            }
+        }
+
         /*
          * Various flavors of acquire, varying in exclusive/shared and
          * control modes.  Each is mostly the same, but annoyingly
@@ -430,16 +645,19 @@ public abstract class AQS
             boolean failed = true;
             try {
                 boolean interrupted = false;
+                boolean spin = true;
                 for (;;) {
                     final AQS.Node p = node.predecessor();
-                    if (p == head && tryAcquire(arg)) {
+                    if (p == head && (tryAcquire(arg) || (spin && spinAcquire(arg)))) {
                         setHead(node);
-                        p.next = null; // help GC
+                        p.unlinkNext(); // help GC
                         failed = false;
                         return interrupted;
                     }
+                    if (p == head)
+                        spin = false;
                     if (shouldParkAfterFailedAcquire(p, node) &&
-                            parkAndCheckInterrupt())
+                            parkAndCheckInterrupt(node))
                         interrupted = true;
                 }
             } finally {
@@ -457,16 +675,19 @@ public abstract class AQS
             final AQS.Node node = addWaiter(AQS.Node.EXCLUSIVE);
             boolean failed = true;
             try {
+                boolean spin = true;
                 for (;;) {
                     final AQS.Node p = node.predecessor();
-                    if (p == head && tryAcquire(arg)) {
+                    if (p == head && (tryAcquire(arg) || (spin && spinAcquire(arg)))) {
                         setHead(node);
-                        p.next = null; // help GC
+                        p.unlinkNext(); // help GC
                         failed = false;
                         return;
                     }
+                    if (p == head)
+                        spin = false;
                     if (shouldParkAfterFailedAcquire(p, node) &&
-                            parkAndCheckInterrupt())
+                            parkAndCheckInterrupt(node))
                         throw new InterruptedException();
                 }
             } finally {
@@ -494,7 +715,7 @@ public abstract class AQS
                     final AQS.Node p = node.predecessor();
                     if (p == head && tryAcquire(arg)) {
                         setHead(node);
-                        p.next = null; // help GC
+                        p.unlinkNext(); // help GC
                         failed = false;
                         return true;
                     }
@@ -503,7 +724,7 @@ public abstract class AQS
                         return false;
                     if (shouldParkAfterFailedAcquire(p, node) &&
                             nanosTimeout > spinForTimeoutThreshold)
-                        LockSupport.parkNanos(this, nanosTimeout);
+                        parkNanos(node, nanosTimeout);
                     if (Thread.interrupted())
                         throw new InterruptedException();
                 }
@@ -528,7 +749,7 @@ public abstract class AQS
                         int r = tryAcquireShared(arg);
                         if (r >= 0) {
                             setHeadAndPropagate(node, r);
-                            p.next = null; // help GC
+                            p.unlinkNext(); // help GC
                             if (interrupted)
                                 selfInterrupt();
                             failed = false;
@@ -536,7 +757,7 @@ public abstract class AQS
                         }
                     }
                     if (shouldParkAfterFailedAcquire(p, node) &&
-                            parkAndCheckInterrupt())
+                            parkAndCheckInterrupt(node))
                         interrupted = true;
                 }
             } finally {
@@ -560,13 +781,13 @@ public abstract class AQS
                         int r = tryAcquireShared(arg);
                         if (r >= 0) {
                             setHeadAndPropagate(node, r);
-                            p.next = null; // help GC
+                            p.unlinkNext(); // help GC
                             failed = false;
                             return;
                         }
                     }
                     if (shouldParkAfterFailedAcquire(p, node) &&
-                            parkAndCheckInterrupt())
+                            parkAndCheckInterrupt(node))
                         throw new InterruptedException();
                 }
             } finally {
@@ -596,7 +817,7 @@ public abstract class AQS
                         int r = tryAcquireShared(arg);
                         if (r >= 0) {
                             setHeadAndPropagate(node, r);
-                            p.next = null; // help GC
+                            p.unlinkNext(); // help GC
                             failed = false;
                             return true;
                         }
@@ -606,7 +827,7 @@ public abstract class AQS
                         return false;
                     if (shouldParkAfterFailedAcquire(p, node) &&
                             nanosTimeout > spinForTimeoutThreshold)
-                        LockSupport.parkNanos(this, nanosTimeout);
+                        parkNanos(node, nanosTimeout);
                     if (Thread.interrupted())
                         throw new InterruptedException();
                 }
@@ -767,9 +988,16 @@ public abstract class AQS
          *        can represent anything you like.
          */
         public final void acquire(int arg) {
-            if (!tryAcquire(arg) &&
-                    acquireQueued(addWaiter(AQS.Node.EXCLUSIVE), arg))
-                selfInterrupt();
+            AQSProfiler pf = profiler;
+            if (!tryAcquire(arg)) {
+                long start = (pf == null) ? 0L : System.nanoTime();
+                if (acquireQueued(addWaiter(AQS.Node.EXCLUSIVE), arg))
+                    selfInterrupt();
+                if (pf != null)
+                    pf.waited(start);
+            }
+            if (pf != null)
+                pf.holdStarted();
         }
 
         /**
@@ -790,8 +1018,15 @@ public abstract class AQS
                 throws InterruptedException {
             if (Thread.interrupted())
                 throw new InterruptedException();
-            if (!tryAcquire(arg))
+            AQSProfiler pf = profiler;
+            if (!tryAcquire(arg)) {
+                long start = (pf == null) ? 0L : System.nanoTime();
                 doAcquireInterruptibly(arg);
+                if (pf != null)
+                    pf.waited(start);
+            }
+            if (pf != null)
+                pf.holdStarted();
         }
 
         /**
@@ -815,8 +1050,17 @@ public abstract class AQS
                 throws InterruptedException {
             if (Thread.interrupted())
                 throw new InterruptedException();
-            return tryAcquire(arg) ||
-                    doAcquireNanos(arg, nanosTimeout);
+            AQSProfiler pf = profiler;
+            if (!tryAcquire(arg)) {
+                long start = (pf == null) ? 0L : System.nanoTime();
+                if (!doAcquireNanos(arg, nanosTimeout))
+                    return false;
+                if (pf != null)
+                    pf.waited(start);
+            }
+            if (pf != null)
+                pf.holdStarted();
+            return true;
         }
 
         /**
@@ -830,6 +1074,9 @@ public abstract class AQS
          * @return the value returned from {@link #tryRelease}
          */
         public final boolean release(int arg) {
+            AQSProfiler pf = profiler;
+            if (pf != null)
+                return profiledRelease(pf, arg);
             if (tryRelease(arg)) {
                 AQS.Node h = head;
                 if (h != null && h.waitStatus != 0)
@@ -839,6 +1086,28 @@ public abstract class AQS
             return false;
         }
 
+        /**
+         * Version of release that records the hold time.  The hold start
+         * is cleared while the caller still owns the synchronizer, so a
+         * thread acquiring right after tryRelease starts its own hold,
+         * and restored if tryRelease did not fully release.
+         */
+        private boolean profiledRelease(AQSProfiler pf, int arg) {
+            long holdStart = pf.beginRelease();
+            boolean released = false;
+            try {
+                released = tryRelease(arg);
+            } finally {
+                pf.endRelease(holdStart, released);
+            }
+            if (released) {
+                AQS.Node h = head;
+                if (h != null && h.waitStatus != 0)
+                    unparkSuccessor(h);
+            }
+            return released;
+        }
+
         /**
          * Acquires in shared mode, ignoring interrupts.  Implemented by
          * first invoking at least once {@link #tryAcquireShared},
@@ -851,8 +1120,13 @@ public abstract class AQS
          *        and can represent anything you like.
          */
         public final void acquireShared(int arg) {
-            if (tryAcquireShared(arg) < 0)
+            if (tryAcquireShared(arg) < 0) {
+                AQSProfiler pf = profiler;
+                long start = (pf == null) ? 0L : System.nanoTime();
                 doAcquireShared(arg);
+                if (pf != null)
+                    pf.waited(start);
+            }
         }
 
         /**
@@ -872,8 +1146,13 @@ public abstract class AQS
                 throws InterruptedException {
             if (Thread.interrupted())
                 throw new InterruptedException();
-            if (tryAcquireShared(arg) < 0)
+            if (tryAcquireShared(arg) < 0) {
+                AQSProfiler pf = profiler;
+                long start = (pf == null) ? 0L : System.nanoTime();
                 doAcquireSharedInterruptibly(arg);
+                if (pf != null)
+                    pf.waited(start);
+            }
         }
 
         /**
@@ -896,8 +1175,15 @@ public abstract class AQS
                 throws InterruptedException {
             if (Thread.interrupted())
                 throw new InterruptedException();
-            return tryAcquireShared(arg) >= 0 ||
-                    doAcquireSharedNanos(arg, nanosTimeout);
+            if (tryAcquireShared(arg) >= 0)
+                return true;
+            AQSProfiler pf = profiler;
+            long start = (pf == null) ? 0L : System.nanoTime();
+            if (!doAcquireSharedNanos(arg, nanosTimeout))
+                return false;
+            if (pf != null)
+                pf.waited(start);
+            return true;
         }
 
         /**
@@ -917,6 +1203,53 @@ public abstract class AQS
             return false;
         }
 
+        // Profiling
+
+        /**
+         * Starts collecting contention statistics for this synchronizer
+         * and registers them as an MBean named
+         * {@code com.importsource.concurrency:type=AQS,name="<name>"}.
+         * Acquires that had to queue are also emitted as JFR events.
+         * Has no effect if profiling is already enabled.
+         *
+         * @param name the name under which to publish the statistics
+         * @return the profiler
+         * @throws IllegalStateException if the MBean cannot be registered
+         */
+        public final AQSProfiler enableProfiling(String name) {
+            AQSProfiler p = profiler;
+            if (p != null)
+                return p;
+            p = new AQSProfiler(name, this);
+            if (!PROFILER.compareAndSet(this, null, p))
+                return profiler;
+            try {
+                p.register();
+            } catch (RuntimeException e) {
+                profiler = null;
+                throw e;
+            }
+            return p;
+        }
+
+        /**
+         * Stops collecting contention statistics and unregisters the MBean.
+         */
+        public final void disableProfiling() {
+            AQSProfiler p = (AQSProfiler) PROFILER.getAndSet(this, null);
+            if (p != null)
+                p.unregister();
+        }
+
+        /**
+         * Returns the profiler, or {@code null} if profiling is disabled.
+         *
+         * @return the profiler
+         */
+        public final AQSProfiler getProfiler() {
+            return profiler;
+        }
+
         // Queue inspection methods
 
         /**
@@ -1821,49 +2154,59 @@ public abstract class AQS
         }
 
         /**
-         * Setup to support compareAndSet. We need to natively implement
-         * this here: For the sake of permitting future enhancements, we
-         * cannot explicitly subclass AtomicInteger, which would be
-         * efficient and useful otherwise. So, as the lesser of evils, we
-         * natively implement using hotspot intrinsics API. And while we
-         * are at it, we do the same for other CASable fields (which could
-         * otherwise be done with atomic field updaters).
-         */
-        private static final Unsafe unsafe = Unsafe.getUnsafe();
-        private static final long stateOffset;
-        private static final long headOffset;
-        private static final long tailOffset;
-        private static final long waitStatusOffset;
-        private static final long nextOffset;
+         * Setup to support compareAndSet and relaxed field access.
+         * VarHandles work from the application class path, where
+         * Unsafe.getUnsafe() throws SecurityException.  They also let
+         * the queueing code choose the access mode per write: fields
+         * written before a node is published by the CAS of tail (prev,
+         * thread) and GC-only unlinking use plain writes, and forward
+         * next links use release writes, since readers either acquire
+         * them through a volatile read or fall back to the prev chain.
+         * Only the CASes and the head/tail/state writes stay volatile.
+         * Those writes go through the Node helpers, which can switch
+         * them all back to volatile, see Node.VOLATILE_LINKS.
+         */
+        private static final VarHandle STATE;
+        private static final VarHandle HEAD;
+        private static final VarHandle TAIL;
+        private static final VarHandle WAITSTATUS;
+        private static final VarHandle NEXT;
+        private static final VarHandle PREV;
+        private static final VarHandle THREAD;
+        private static final VarHandle PROFILER;
 
         static {
             try {
-                stateOffset = unsafe.objectFieldOffset
-                        (AQS.class.getDeclaredField("state"));
-                headOffset = unsafe.objectFieldOffset
-                        (AQS.class.getDeclaredField("head"));
-                tailOffset = unsafe.objectFieldOffset
-                        (AQS.class.getDeclaredField("tail"));
-                waitStatusOffset = unsafe.objectFieldOffset
-                        (AQS.Node.class.getDeclaredField("waitStatus"));
-                nextOffset = unsafe.objectFieldOffset
-                        (AQS.Node.class.getDeclaredField("next"));
+                MethodHandles.Lookup l = MethodHandles.lookup();
+                STATE = l.findVarHandle(AQS.class, "state", int.class);
+                HEAD = l.findVarHandle(AQS.class, "head", AQS.Node.class);
+                TAIL = l.findVarHandle(AQS.class, "tail", AQS.Node.class);
+                WAITSTATUS = l.findVarHandle(AQS.Node.class, "waitStatus", int.class);
+                NEXT = l.findVarHandle(AQS.Node.class, "next", AQS.Node.class);
+                PREV = l.findVarHandle(AQS.Node.class, "prev", AQS.Node.class);
+                THREAD = l.findVarHandle(AQS.Node.class, "thread", Thread.class);
+                PROFILER = l.findVarHandle(AQS.class, "profiler", AQSProfiler.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
 
-            } catch (Exception ex) { throw new Error(ex); }
+            // Reduce the risk of rare disastrous classloading in first call to
+            // LockSupport.park: https://bugs.openjdk.java.net/browse/JDK-8074773
+            Class<?> ensureLoaded = LockSupport.class;
         }
 
         /**
          * CAS head field. Used only by enq.
          */
         private final boolean compareAndSetHead(AQS.Node update) {
-            return unsafe.compareAndSwapObject(this, headOffset, null, update);
+            return HEAD.compareAndSet(this, null, update);
         }
 
         /**
          * CAS tail field. Used only by enq.
          */
         private final boolean compareAndSetTail(AQS.Node expect, AQS.Node update) {
-            return unsafe.compareAndSwapObject(this, tailOffset, expect, update);
+            return TAIL.compareAndSet(this, expect, update);
         }
 
         /**
@@ -1872,8 +2215,7 @@ public abstract class AQS
         private static final boolean compareAndSetWaitStatus(AQS.Node node,
                                                              int expect,
                                                              int update) {
-            return unsafe.compareAndSwapInt(node, waitStatusOffset,
-                    expect, update);
+            return WAITSTATUS.compareAndSet(node, expect, update);
         }
 
         /**
@@ -1882,8 +2224,6 @@ public abstract class AQS
         private static final boolean compareAndSetNext(AQS.Node node,
                                                        AQS.Node expect,
                                                        AQS.Node update) {
-            return unsafe.compareAndSwapObject(node, nextOffset, expect, update);
+            return NEXT.compareAndSet(node, expect, update);
         }
     }
-
-
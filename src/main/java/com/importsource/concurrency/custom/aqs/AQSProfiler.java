@@ -0,0 +1,354 @@
+package com.importsource.concurrency.custom.aqs;
+
+import com.importsource.concurrency.custom.queue.delay.LatencyHistogram;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.AbstractOwnableSynchronizer;
+
+/**
+ * 单个AQS实例的争用统计，由AQS#enableProfiling创建。时间都按纳秒记录在LatencyHistogram里，通过JMX以微秒发布。
+ *
+ * 没有开启的时候AQS里的profiler是null，各个埋点只多一次volatile读；开启以后：
+ * 1.排过队的acquire记录等待时间，并发出一个JFR事件（com.importsource.aqs.LockWait）。
+ * 2.入队时记录当前的队列长度，队列长度 = 入队次数 - 出队次数，不用遍历队列。
+ * 3.park、unpark计数；unparkSuccessor在后继的Node上记下时间，后继醒来以后算出交接延迟。
+ * 4.独占模式记录每次持有的时长，超过holdEventThreshold的发出JFR事件（com.importsource.aqs.LockHold）。
+ *   Condition.await重新拿到锁以后的那一段不计。
+ */
+public class AQSProfiler implements AQSProfilerMBean {
+
+    final LatencyHistogram acquireWait = new LatencyHistogram();
+
+    final LatencyHistogram queueLength = new LatencyHistogram();
+
+    final LatencyHistogram handoff = new LatencyHistogram();
+
+    final LatencyHistogram holdTime = new LatencyHistogram();
+
+    private final AtomicLong enqueued = new AtomicLong();
+
+    private final AtomicLong dequeued = new AtomicLong();
+
+    private final AtomicLong parks = new AtomicLong();
+
+    private final AtomicLong unparks = new AtomicLong();
+
+    /**
+     * 当前持有者拿到锁的时间（System.nanoTime），没人持有或者不知道的时候是0。只有持有者读写。
+     */
+    private long holdStart;
+
+    private volatile long holdEventThreshold = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final String name;
+
+    private final AbstractOwnableSynchronizer synchronizer;
+
+    private ObjectName objectName;
+
+    AQSProfiler(String name, AbstractOwnableSynchronizer synchronizer) {
+        if (name == null)
+            throw new NullPointerException();
+        this.name = name;
+        this.synchronizer = synchronizer;
+    }
+
+    @Name("com.importsource.aqs.LockWait")
+    @Label("AQS Lock Wait")
+    @Category({"Java Application", "Locks"})
+    @Description("An acquire that had to queue on an AQS-based synchronizer")
+    static class LockWaitEvent extends Event {
+        @Label("Lock")
+        String lock;
+
+        @Label("Synchronizer Class")
+        Class<?> synchronizerClass;
+
+        @Label("Wait Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long waitTime;
+
+        @Label("Queue Length")
+        long queueLength;
+    }
+
+    @Name("com.importsource.aqs.LockHold")
+    @Label("AQS Lock Hold")
+    @Category({"Java Application", "Locks"})
+    @Description("An exclusive hold of an AQS-based synchronizer longer than the profiler's threshold")
+    static class LockHoldEvent extends Event {
+        @Label("Lock")
+        String lock;
+
+        @Label("Synchronizer Class")
+        Class<?> synchronizerClass;
+
+        @Label("Hold Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long holdTime;
+    }
+
+    void register() {
+        try {
+            ObjectName on = new ObjectName("com.importsource.concurrency:type=AQS,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+            objectName = on;
+        } catch (JMException e) {
+            throw new IllegalStateException("cannot register profiler of " + name, e);
+        }
+    }
+
+    void unregister() {
+        if (objectName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException ignore) {
+        }
+        objectName = null;
+    }
+
+    /**
+     * 持有时间超过它的独占持有才发出JFR事件，默认1毫秒
+     */
+    public void setHoldEventThreshold(long threshold, TimeUnit unit) {
+        holdEventThreshold = unit.toNanos(threshold);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public LatencyHistogram getAcquireWait() {
+        return acquireWait;
+    }
+
+    public LatencyHistogram getQueueLengths() {
+        return queueLength;
+    }
+
+    public LatencyHistogram getHandoff() {
+        return handoff;
+    }
+
+    public LatencyHistogram getHoldTime() {
+        return holdTime;
+    }
+
+    void enqueued() {
+        long length = enqueued.incrementAndGet() - dequeued.get();
+        queueLength.record(length);
+    }
+
+    /**
+     * 开启统计之前就已经在排队的节点不计入，否则dequeued会一直比enqueued多，队列长度永远偏小。
+     * 节点出队时清掉signalTime：没有park就拿到了的节点，unparkSuccessor留下的时间戳不能算到以后的唤醒上
+     */
+    void dequeued(AQS.Node node) {
+        if (node.profiledBy == this)
+            dequeued.incrementAndGet();
+        node.signalTime = 0L;
+    }
+
+    void parked() {
+        parks.incrementAndGet();
+    }
+
+    void unparked(AQS.Node s) {
+        unparks.incrementAndGet();
+        s.signalTime = System.nanoTime();
+    }
+
+    void woke(AQS.Node node) {
+        long t = node.signalTime;
+        if (t != 0L) {
+            node.signalTime = 0L;
+            handoff.record(System.nanoTime() - t);
+        }
+    }
+
+    /**
+     * 排队以后拿到了
+     * @param start 开始排队的时间
+     */
+    void waited(long start) {
+        long w = System.nanoTime() - start;
+        acquireWait.record(w);
+        LockWaitEvent e = new LockWaitEvent();
+        if (e.shouldCommit()) {
+            e.lock = name;
+            e.synchronizerClass = synchronizer.getClass();
+            e.waitTime = w;
+            e.queueLength = getQueueLength();
+            e.commit();
+        }
+    }
+
+    /**
+     * 独占模式拿到了。重入的时候holdStart已经有值，不覆盖
+     */
+    void holdStarted() {
+        if (holdStart == 0L)
+            holdStart = System.nanoTime();
+    }
+
+    /**
+     * tryRelease之前由持有者调用，先把holdStart清掉，这样tryRelease之后马上拿到锁的线程能记下自己的开始时间
+     */
+    long beginRelease() {
+        long s = holdStart;
+        holdStart = 0L;
+        return s;
+    }
+
+    /**
+     * @param start beginRelease返回的值
+     * @param released tryRelease是否完全释放了；没有（重入）的话恢复holdStart
+     */
+    void endRelease(long start, boolean released) {
+        if (!released) {
+            holdStart = start;
+            return;
+        }
+        if (start == 0L)
+            return;
+        long h = System.nanoTime() - start;
+        holdTime.record(h);
+        if (h >= holdEventThreshold) {
+            LockHoldEvent e = new LockHoldEvent();
+            if (e.shouldCommit()) {
+                e.lock = name;
+                e.synchronizerClass = synchronizer.getClass();
+                e.holdTime = h;
+                e.commit();
+            }
+        }
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    @Override
+    public long getContendedAcquireCount() {
+        return acquireWait.getCount();
+    }
+
+    @Override
+    public long getAcquireWaitP50Micros() {
+        return micros(acquireWait.getPercentile(50));
+    }
+
+    @Override
+    public long getAcquireWaitP99Micros() {
+        return micros(acquireWait.getPercentile(99));
+    }
+
+    @Override
+    public long getAcquireWaitMaxMicros() {
+        return micros(acquireWait.getMax());
+    }
+
+    @Override
+    public double getAcquireWaitMeanMicros() {
+        return acquireWait.getMean() / 1000;
+    }
+
+    @Override
+    public long getQueueLength() {
+        return Math.max(enqueued.get() - dequeued.get(), 0L);
+    }
+
+    @Override
+    public long getQueueLengthP99() {
+        return queueLength.getPercentile(99);
+    }
+
+    @Override
+    public long getQueueLengthMax() {
+        return queueLength.getMax();
+    }
+
+    @Override
+    public double getQueueLengthMean() {
+        return queueLength.getMean();
+    }
+
+    @Override
+    public long getParkCount() {
+        return parks.get();
+    }
+
+    @Override
+    public long getUnparkCount() {
+        return unparks.get();
+    }
+
+    @Override
+    public long getHandoffP50Micros() {
+        return micros(handoff.getPercentile(50));
+    }
+
+    @Override
+    public long getHandoffP99Micros() {
+        return micros(handoff.getPercentile(99));
+    }
+
+    @Override
+    public long getHandoffMaxMicros() {
+        return micros(handoff.getMax());
+    }
+
+    @Override
+    public long getHoldTimeP50Micros() {
+        return micros(holdTime.getPercentile(50));
+    }
+
+    @Override
+    public long getHoldTimeP99Micros() {
+        return micros(holdTime.getPercentile(99));
+    }
+
+    @Override
+    public long getHoldTimeMaxMicros() {
+        return micros(holdTime.getMax());
+    }
+
+    @Override
+    public double getHoldTimeMeanMicros() {
+        return holdTime.getMean() / 1000;
+    }
+
+    /**
+     * 清空直方图和park/unpark计数；入队、出队计数不清，否则算出来的队列长度就不对了
+     */
+    @Override
+    public void reset() {
+        acquireWait.reset();
+        queueLength.reset();
+        handoff.reset();
+        holdTime.reset();
+        parks.set(0);
+        unparks.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return name + ": queueLength=" + getQueueLength()
+                + " parks=" + getParkCount() + " unparks=" + getUnparkCount()
+                + "\nacquireWait(ns): " + acquireWait
+                + "\nqueueLength: " + queueLength
+                + "\nhandoff(ns): " + handoff
+                + "\nholdTime(ns): " + holdTime;
+    }
+}
@@ -0,0 +1,63 @@
+package com.importsource.concurrency.custom.aqs;
+
+/**
+ * AQS争用统计的JMX接口，时间的单位都是微秒
+ */
+public interface AQSProfilerMBean {
+
+    /**
+     * 排过队才拿到的次数（不包括一次tryAcquire就成功的）
+     */
+    long getContendedAcquireCount();
+
+    /**
+     * 排队等了多久才拿到
+     */
+    long getAcquireWaitP50Micros();
+
+    long getAcquireWaitP99Micros();
+
+    long getAcquireWaitMaxMicros();
+
+    double getAcquireWaitMeanMicros();
+
+    /**
+     * 现在排队的线程数（近似值）
+     */
+    long getQueueLength();
+
+    /**
+     * 每次入队时采样的队列长度
+     */
+    long getQueueLengthP99();
+
+    long getQueueLengthMax();
+
+    double getQueueLengthMean();
+
+    long getParkCount();
+
+    long getUnparkCount();
+
+    /**
+     * 从release叫醒后继到后继线程真正醒过来用了多久
+     */
+    long getHandoffP50Micros();
+
+    long getHandoffP99Micros();
+
+    long getHandoffMaxMicros();
+
+    /**
+     * 独占模式下每次持有了多久
+     */
+    long getHoldTimeP50Micros();
+
+    long getHoldTimeP99Micros();
+
+    long getHoldTimeMaxMicros();
+
+    double getHoldTimeMeanMicros();
+
+    void reset();
+}
@@ -0,0 +1,444 @@
+package com.importsource.concurrency.custom.aqs;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * 偏向读者的读写锁（BRAVO：Biased Locking for Reader-Writer Locks）
+ *
+ * 普通的读写锁每个读者都要CAS同一个state，读多写少的时候这个字上的缓存行在各个核之间来回跑，
+ * 核越多读的吞吐越上不去。
+ *
+ * 这里的做法是：
+ * 1.底层是一个用AQLS共享模式实现的普通读写锁：state的高32位是读者数，低32位是写者的重入次数，读者数不会溢出。
+ * 2.在它前面加一层偏向：rbias为true的时候，读者按线程散列到一个槽位上，用CAS把自己的Thread放进去就算拿到了读锁，
+ *   完全不碰state。不同的读者落在不同的槽位（每个槽位独占一条缓存行），读的吞吐随核数线性增长。
+ *   槽位被别的线程占了（散列冲突）或者没有偏向的时候，走底层锁的共享模式。
+ * 3.写者先拿底层的写锁（这时底层的读者都已经走了），再撤销偏向：把rbias置为false，然后等所有槽位清空。
+ *   读者是先占槽位再检查rbias，写者是先改rbias再扫描槽位，两边都是volatile，不会互相漏看。
+ * 4.撤销偏向的代价和槽位数成正比，为了不让频繁的写者反复付这个代价，撤销以后的一段时间（撤销耗时的INHIBIT_MULTIPLIER倍）
+ *   不再偏向；之后第一个走底层共享模式的读者重新打开偏向。
+ *
+ * 限制：
+ * 1.读锁不可重入：持有读锁的线程再去拿读锁，如果中间有写者在撤销偏向，会死锁。写锁可以重入，持有写锁的线程可以再拿读锁（降级）。
+ * 2.不支持Condition，因为Condition.await重新拿写锁时绕过了撤销偏向。
+ * 3.和ReentrantReadWriteLock一样，反序列化出来的锁总是没有被持有的状态。
+ */
+public class BiasedReadWriteLock implements ReadWriteLock, java.io.Serializable {
+
+    private static final long serialVersionUID = -2530437283526219738L;
+
+    /**
+     * 撤销偏向以后，禁止偏向的时长是撤销耗时的多少倍，和BRAVO论文一样取9，
+     * 这样写者花在撤销上的时间最多占10%
+     */
+    static final int INHIBIT_MULTIPLIER = 9;
+
+    /**
+     * 相邻两个槽位在数组里隔开多少个元素，保证每个槽位独占一条缓存行（64字节，引用按4字节算）
+     */
+    static final int STRIDE = 16;
+
+    /**
+     * 最多多少个槽位
+     */
+    static final int MAX_SLOTS = 1 << 10;
+
+    private final Sync sync;
+
+    private final ReadLock readerLock;
+
+    private final WriteLock writerLock;
+
+    /**
+     * 偏向的读者占的槽位，第i个槽位在下标i * STRIDE。里面是Thread，不能序列化，反序列化时按mask重建
+     */
+    private transient AtomicReferenceArray<Thread> slots;
+
+    private final int mask;
+
+    /**
+     * 读者是否可以走槽位
+     */
+    private transient volatile boolean rbias = true;
+
+    /**
+     * 在这个时间点（System.nanoTime）之前不重新打开偏向
+     */
+    private transient volatile long inhibitUntil;
+
+    /**
+     * 槽位数取不小于CPU核数4倍的2的幂
+     */
+    public BiasedReadWriteLock() {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @param concurrency 预计的并发读者数，槽位数取不小于它的2的幂，最多MAX_SLOTS个
+     */
+    public BiasedReadWriteLock(int concurrency) {
+        if (concurrency <= 0)
+            throw new IllegalArgumentException();
+        int n = 1;
+        while (n < concurrency && n < MAX_SLOTS)
+            n <<= 1;
+        this.slots = new AtomicReferenceArray<Thread>(n * STRIDE);
+        this.mask = n - 1;
+        this.sync = new Sync();
+        this.readerLock = new ReadLock(this);
+        this.writerLock = new WriteLock(this);
+    }
+
+    @Override
+    public ReadLock readLock() {
+        return readerLock;
+    }
+
+    @Override
+    public WriteLock writeLock() {
+        return writerLock;
+    }
+
+    /**
+     * 底层的读写锁。state的高32位是读者数，低32位是写者的重入次数。非公平，但写者排在队头的时候新来的读者让路，写者不会饿死。
+     */
+    static final class Sync extends AQLS {
+        private static final long serialVersionUID = 6317671515068378041L;
+
+        static final int SHARED_SHIFT = 32;
+        static final long SHARED_UNIT = 1L << SHARED_SHIFT;
+        static final long EXCLUSIVE_MASK = SHARED_UNIT - 1;
+
+        static long sharedCount(long c) {
+            return c >>> SHARED_SHIFT;
+        }
+
+        static long exclusiveCount(long c) {
+            return c & EXCLUSIVE_MASK;
+        }
+
+        @Override
+        protected boolean tryAcquire(long acquires) {
+            Thread current = Thread.currentThread();
+            long c = getState();
+            if (c != 0) {
+                // 有读者，或者写锁被别人拿着
+                if (exclusiveCount(c) == 0 || current != getExclusiveOwnerThread())
+                    return false;
+                if (exclusiveCount(c) + acquires > EXCLUSIVE_MASK)
+                    throw new Error("Maximum lock count exceeded");
+                setState(c + acquires);
+                return true;
+            }
+            if (!compareAndSetState(0, acquires))
+                return false;
+            setExclusiveOwnerThread(current);
+            return true;
+        }
+
+        @Override
+        protected boolean tryRelease(long releases) {
+            if (!isHeldExclusively())
+                throw new IllegalMonitorStateException();
+            long nextc = getState() - releases;
+            boolean free = exclusiveCount(nextc) == 0;
+            if (free)
+                setExclusiveOwnerThread(null);
+            setState(nextc);
+            return free;
+        }
+
+        @Override
+        protected long tryAcquireShared(long unused) {
+            Thread current = Thread.currentThread();
+            for (;;) {
+                long c = getState();
+                if (exclusiveCount(c) != 0) {
+                    if (getExclusiveOwnerThread() != current)
+                        return -1;
+                    // 持有写锁的线程拿读锁（降级），不让路
+                } else if (apparentlyFirstQueuedIsExclusive())
+                    return -1;
+                if (sharedCount(c) == EXCLUSIVE_MASK)
+                    throw new Error("Maximum lock count exceeded");
+                if (compareAndSetState(c, c + SHARED_UNIT))
+                    return 1;
+            }
+        }
+
+        @Override
+        protected boolean tryReleaseShared(long unused) {
+            for (;;) {
+                long c = getState();
+                if (sharedCount(c) == 0)
+                    throw new IllegalMonitorStateException();
+                long nextc = c - SHARED_UNIT;
+                if (compareAndSetState(c, nextc))
+                    return nextc == 0;
+            }
+        }
+
+        @Override
+        protected boolean isHeldExclusively() {
+            return getExclusiveOwnerThread() == Thread.currentThread();
+        }
+
+        long getCount() {
+            return getState();
+        }
+
+        /**
+         * 反序列化以后是没有被持有的状态
+         */
+        private void readObject(ObjectInputStream s) throws IOException, ClassNotFoundException {
+            s.defaultReadObject();
+            setState(0);
+        }
+    }
+
+    /**
+     * 当前线程的槽位在数组里的下标
+     */
+    private int slotIndex(Thread t) {
+        long id = t.getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) & mask) * STRIDE;
+    }
+
+    /**
+     * 偏向的快速路径：占到槽位并且占完以后偏向还在，就算拿到了读锁
+     */
+    private boolean tryFastRead(Thread current) {
+        if (!rbias)
+            return false;
+        int i = slotIndex(current);
+        if (slots.get(i) != null || !slots.compareAndSet(i, null, current))
+            return false;
+        if (rbias)
+            return true;
+        // 写者正在撤销偏向，退出来走底层锁
+        slots.setRelease(i, null);
+        return false;
+    }
+
+    /**
+     * 走底层共享模式拿到读锁以后调用：禁止偏向的时间过了，就重新打开偏向。
+     * 持有读锁的时候别的线程拿不到写锁，所以只要当前线程自己没拿着写锁，这时打开偏向是安全的；
+     * 之后的写者拿到写锁以后会看到它并撤销。
+     */
+    private void afterSlowRead() {
+        if (!rbias && System.nanoTime() - inhibitUntil >= 0
+                && Sync.exclusiveCount(sync.getCount()) == 0)
+            rbias = true;
+    }
+
+    /**
+     * 拿到写锁以后调用：撤销偏向并等所有槽位清空
+     */
+    private void revokeBias() {
+        if (!rbias)
+            return;
+        rbias = false;
+        long start = System.nanoTime();
+        AtomicReferenceArray<Thread> slots = this.slots;
+        for (int i = 0, n = slots.length(); i < n; i += STRIDE) {
+            for (int spins = 0; slots.get(i) != null; spins++) {
+                if (spins < 64)
+                    Thread.onSpinWait();
+                else
+                    Thread.yield();
+            }
+        }
+        long now = System.nanoTime();
+        inhibitUntil = now + (now - start) * INHIBIT_MULTIPLIER;
+    }
+
+    private void releaseRead() {
+        Thread current = Thread.currentThread();
+        int i = slotIndex(current);
+        if (slots.get(i) == current)
+            slots.setRelease(i, null);
+        else
+            sync.releaseShared(1);
+    }
+
+    public static class ReadLock implements Lock, java.io.Serializable {
+        private static final long serialVersionUID = -5992448646407690165L;
+
+        private final BiasedReadWriteLock lock;
+
+        protected ReadLock(BiasedReadWriteLock lock) {
+            this.lock = lock;
+        }
+
+        @Override
+        public void lock() {
+            if (!lock.tryFastRead(Thread.currentThread())) {
+                lock.sync.acquireShared(1);
+                lock.afterSlowRead();
+            }
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (!lock.tryFastRead(Thread.currentThread())) {
+                lock.sync.acquireSharedInterruptibly(1);
+                lock.afterSlowRead();
+            }
+        }
+
+        @Override
+        public boolean tryLock() {
+            if (lock.tryFastRead(Thread.currentThread()))
+                return true;
+            if (lock.sync.tryAcquireShared(1) < 0)
+                return false;
+            lock.afterSlowRead();
+            return true;
+        }
+
+        @Override
+        public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (lock.tryFastRead(Thread.currentThread()))
+                return true;
+            if (!lock.sync.tryAcquireSharedNanos(1, unit.toNanos(timeout)))
+                return false;
+            lock.afterSlowRead();
+            return true;
+        }
+
+        @Override
+        public void unlock() {
+            lock.releaseRead();
+        }
+
+        /**
+         * 读锁不支持Condition
+         */
+        @Override
+        public Condition newCondition() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public static class WriteLock implements Lock, java.io.Serializable {
+        private static final long serialVersionUID = -4992448646407690164L;
+
+        private final BiasedReadWriteLock lock;
+
+        protected WriteLock(BiasedReadWriteLock lock) {
+            this.lock = lock;
+        }
+
+        @Override
+        public void lock() {
+            lock.sync.acquire(1);
+            lock.revokeBias();
+        }
+
+        /**
+         * 只有排队等底层写锁的时候响应中断，撤销偏向时等槽位清空不响应
+         */
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            lock.sync.acquireInterruptibly(1);
+            lock.revokeBias();
+        }
+
+        @Override
+        public boolean tryLock() {
+            if (!lock.sync.tryAcquire(1))
+                return false;
+            lock.revokeBias();
+            return true;
+        }
+
+        /**
+         * 超时只对排队等底层写锁有效，撤销偏向时等槽位清空不计入
+         */
+        @Override
+        public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException {
+            if (!lock.sync.tryAcquireNanos(1, unit.toNanos(timeout)))
+                return false;
+            lock.revokeBias();
+            return true;
+        }
+
+        @Override
+        public void unlock() {
+            lock.sync.release(1);
+        }
+
+        /**
+         * 不支持Condition，参见类的说明
+         */
+        @Override
+        public Condition newCondition() {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean isHeldByCurrentThread() {
+            return lock.sync.isHeldExclusively();
+        }
+    }
+
+    /**
+     * 读者现在是否走槽位
+     */
+    public boolean isReadBiased() {
+        return rbias;
+    }
+
+    public boolean isWriteLocked() {
+        return Sync.exclusiveCount(sync.getCount()) != 0;
+    }
+
+    /**
+     * 当前持有读锁的数量（底层锁的读者数加上被占的槽位数），只用于监控
+     */
+    public long getReadLockCount() {
+        long n = Sync.sharedCount(sync.getCount());
+        for (int i = 0, len = slots.length(); i < len; i += STRIDE)
+            if (slots.get(i) != null)
+                n++;
+        return n;
+    }
+
+    /**
+     * 开启底层锁的争用统计，参见AQLS#enableProfiling。走槽位的读者不经过底层锁，不计入统计。
+     */
+    public AQSProfiler enableProfiling(String name) {
+        return sync.enableProfiling(name);
+    }
+
+    public void disableProfiling() {
+        sync.disableProfiling();
+    }
+
+    /**
+     * 重建槽位，重新打开偏向
+     */
+    private void readObject(ObjectInputStream s) throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        slots = new AtomicReferenceArray<Thread>((mask + 1) * STRIDE);
+        rbias = true;
+    }
+
+    @Override
+    public String toString() {
+        long c = sync.getCount();
+        return super.toString() + "[Write locks = " + Sync.exclusiveCount(c)
+                + ", Read locks = " + getReadLockCount()
+                + ", Biased = " + rbias + "]";
+    }
+}
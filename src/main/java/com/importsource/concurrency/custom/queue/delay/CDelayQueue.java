@@ -2,9 +2,10 @@ package com.importsource.concurrency.custom.queue.delay;
 
 
 import java.util.AbstractQueue;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.PriorityQueue;
+import java.util.NoSuchElementException;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
@@ -27,7 +28,7 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
  *   2.2.定义一个DelayQueue。
  *      2.2.1.继承AbstractQueue
  *      2.2.2.实现BlockingQueue
- *      2.2.2.使用PriorityQueue来装载任务
+ *      2.2.2.使用数组实现的二叉堆（优先队列）来装载任务，Task记住自己在堆中的下标，取消任务时不用遍历
  *      2.2.3.使用重入锁ReentrantLock来存取操作的线程安全
  *      2.2.4.创建condition，用来唤醒和挂起线程
  *      2.2.5.核心方法take的实现
@@ -40,7 +41,14 @@ public class CDelayQueue<E extends Delayed> extends AbstractQueue<E> implements
 
     private final transient ReentrantLock lock=new ReentrantLock();
 
-    private PriorityQueue<E> q=new PriorityQueue<E>();
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * 二叉堆，queue[0]是最早到期的元素。下标为k的元素的两个孩子分别在2k+1和2k+2。
+     */
+    private Object[] queue = new Object[INITIAL_CAPACITY];
+
+    private int size = 0;
 
 
     /**
@@ -92,9 +100,500 @@ public class CDelayQueue<E extends Delayed> extends AbstractQueue<E> implements
 
     private final Condition available = lock.newCondition();
 
+    /**
+     * wait的上限，保证 System.nanoTime() + wait 不会溢出
+     */
+    private static final long MAX_WAIT = Long.MAX_VALUE >> 2;
+
+    /**
+     * 定时器合并（timer slack）：一个元素允许比它的到期时间晚触发多久，单位纳秒。
+     *
+     * leader不再精确地等到堆顶到期，而是等到 堆顶到期时间 + slack，醒来的时候这个窗口里到期的元素都已经到期了，
+     * 调用方用drainTo一次全部取走。定时器很密的时候，本来每个元素都要唤醒一次leader，现在一个窗口只唤醒一次，
+     * 加锁、上下文切换都少了很多。元素不会提前触发，最多晚slack。
+     *
+     * Task可以用自己的slack覆盖这个值。
+     */
+    private volatile long slack;
+
+    /**
+     * 有没有出现过自带slack的Task。没有的话所有元素的容忍度一样，堆顶的最晚触发时间就是最早的，不用维护wakeHint
+     */
+    private boolean perElementSlack;
+
+    /**
+     * 不在堆顶、但自带更小slack的元素里，最早的最晚触发时间（System.nanoTime）。hasWakeHint为false时无效。
+     * 元素被取走、被删除以后不会更新它，最多导致leader多醒一次。
+     */
+    private long wakeHint;
+
+    private boolean hasWakeHint;
+
+    /**
+     * leader计划醒来的时间（System.nanoTime），只在leader不为null时有意义
+     */
+    private long leaderWakeAt;
+
+    /**
+     * 判断是否到期用的时钟，默认是System.nanoTime
+     */
+    private volatile NanoClock clock = NanoClock.SYSTEM;
+
+    /**
+     * 记录leader每次等待的时长，为null时不记录
+     */
+    private volatile LatencyHistogram leaderWaits;
+
+    /**
+     * 容量，Integer.MAX_VALUE表示不限
+     */
+    private final int capacity;
+
+    /**
+     * 有界的时候，队列满了put和带超时的offer在这上面等
+     */
+    private final Condition notFull = lock.newCondition();
+
+    public CDelayQueue() {
+        this.capacity = Integer.MAX_VALUE;
+    }
+
+    /**
+     * 有界的延迟队列：满了以后put阻塞，offer(e)返回false，offer(e, timeout, unit)最多等timeout。
+     * 流量突增的时候内存不会无限制地涨上去。
+     * @param capacity 最多放多少个元素
+     */
+    public CDelayQueue(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException();
+        this.capacity = capacity;
+    }
+
+    /**
+     * 换一个判断是否到期用的时钟。能接受毫秒级精度的定时器可以用NanoClock.coarse，take、poll、drainTo就不用再调System.nanoTime。
+     * 时钟只能比真实时间慢，不能快，这样元素只会晚触发、不会提前触发。
+     */
+    public void setClock(NanoClock clock) {
+        if (clock == null)
+            throw new NullPointerException();
+        this.clock = clock;
+    }
+
+    /**
+     * 记录leader每次在堆顶上等待的时长，传null关闭
+     */
+    public void recordLeaderWaits(LatencyHistogram histogram) {
+        this.leaderWaits = histogram;
+    }
+
+    /**
+     * @param slack 元素允许晚触发多久，参见setSlack
+     */
+    public CDelayQueue(long slack, TimeUnit unit) {
+        this();
+        setSlack(slack, unit);
+    }
+
+    /**
+     * @param capacity 最多放多少个元素
+     * @param slack 元素允许晚触发多久，参见setSlack
+     */
+    public CDelayQueue(int capacity, long slack, TimeUnit unit) {
+        this(capacity);
+        setSlack(slack, unit);
+    }
+
+    /**
+     * 设置元素允许晚触发多久。为0时（默认）严格按到期时间唤醒。
+     */
+    public void setSlack(long slack, TimeUnit unit) {
+        if (slack < 0)
+            throw new IllegalArgumentException();
+        this.slack = unit.toNanos(slack);
+    }
+
+    public long getSlack(TimeUnit unit) {
+        return unit.convert(slack, NANOSECONDS);
+    }
+
+    private static boolean hasOwnSlack(Object e) {
+        return e instanceof Task && ((Task) e).getSlack() >= 0;
+    }
+
+    private long slackOf(Object e) {
+        if (e instanceof Task) {
+            long s = ((Task) e).getSlack();
+            if (s >= 0)
+                return s;
+        }
+        return slack;
+    }
+
+    /**
+     * leader这次要等多久：等到堆顶的最晚触发时间，如果有别的元素的最晚触发时间更早，就等到那个时候。
+     * 记下醒来的时间，offer据此判断要不要提前叫醒leader。Call only when holding lock.
+     */
+    private long leaderWait(E first, long delay, long now) {
+        long wait = Math.min(delay, MAX_WAIT) + Math.min(slackOf(first), MAX_WAIT);
+        if (wait > MAX_WAIT)
+            wait = MAX_WAIT;
+        if (hasWakeHint) {
+            long h = wakeHint - now;
+            // 最晚触发时间已经过了的元素一定已经到期，会在这次被取走，不用再管它
+            if (h <= 0)
+                hasWakeHint = false;
+            else if (h < wait)
+                wait = h;
+        }
+        leaderWakeAt = now + wait;
+        return wait;
+    }
+
+    @SuppressWarnings("unchecked")
+    private E head() {
+        return (E) queue[0];
+    }
+
+    /**
+     * 如果是Task，就记下它在堆中的下标
+     */
+    private void setIndex(Object e, int idx) {
+        if (e instanceof Task)
+            ((Task) e).heapIndex = idx;
+    }
+
+    /**
+     * Sifts element added at bottom up to its heap-ordered spot.
+     * Call only when holding lock.
+     */
+    private void siftUp(int k, Delayed key) {
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            Delayed e = (Delayed) queue[parent];
+            if (key.compareTo(e) >= 0)
+                break;
+            queue[k] = e;
+            setIndex(e, k);
+            k = parent;
+        }
+        queue[k] = key;
+        setIndex(key, k);
+    }
+
+    /**
+     * Sifts element added at top down to its heap-ordered spot.
+     * Call only when holding lock.
+     */
+    private void siftDown(int k, Delayed key) {
+        int half = size >>> 1;
+        while (k < half) {
+            int child = (k << 1) + 1;
+            Delayed c = (Delayed) queue[child];
+            int right = child + 1;
+            if (right < size && c.compareTo((Delayed) queue[right]) > 0)
+                c = (Delayed) queue[child = right];
+            if (key.compareTo(c) <= 0)
+                break;
+            queue[k] = c;
+            setIndex(c, k);
+            k = child;
+        }
+        queue[k] = key;
+        setIndex(key, k);
+    }
+
+    /**
+     * Resizes the heap array.  Call only when holding lock.
+     */
+    private void grow() {
+        int oldCapacity = queue.length;
+        int newCapacity = oldCapacity + (oldCapacity >> 1); // grow 50%
+        if (newCapacity < 0) // overflow
+            newCapacity = Integer.MAX_VALUE;
+        queue = Arrays.copyOf(queue, newCapacity);
+    }
+
+    /**
+     * 找到x在堆中的下标，找不到返回-1。
+     * Task直接读它记下的下标，O(1)；其它类型只能遍历。按引用比较。
+     */
+    private int indexOf(Object x) {
+        if (x != null) {
+            if (x instanceof Task) {
+                int i = ((Task) x).heapIndex;
+                // Sanity check; x could conceivably be a
+                // Task from some other queue.
+                if (i >= 0 && i < size && queue[i] == x)
+                    return i;
+            } else {
+                for (int i = 0; i < size; i++)
+                    if (x.equals(queue[i]))
+                        return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 有界的时候，删掉一个元素以后叫醒一个等着放元素的线程。Call only when holding lock.
+     */
+    private void signalNotFull() {
+        if (capacity != Integer.MAX_VALUE)
+            notFull.signal();
+    }
+
+    /**
+     * 删掉堆顶元素f：用最后一个元素顶替它，然后往下沉。Call only when holding lock.
+     */
+    private E finishPoll(E f) {
+        signalNotFull();
+        int s = --size;
+        Delayed x = (Delayed) queue[s];
+        queue[s] = null;
+        if (s != 0)
+            siftDown(0, x);
+        setIndex(f, -1);
+        return f;
+    }
+
+    /**
+     * 删掉下标为i的元素：用最后一个元素顶替它，再根据大小往下沉或者往上浮，O(log n)。
+     * Call only when holding lock.
+     */
+    private void removeAt(int i) {
+        signalNotFull();
+        setIndex(queue[i], -1);
+        int s = --size;
+        Delayed replacement = (Delayed) queue[s];
+        queue[s] = null;
+        if (s != i) {
+            siftDown(i, replacement);
+            if (queue[i] == replacement)
+                siftUp(i, replacement);
+        }
+    }
+
+    /**
+     * 取消一个任务。Task直接按它记下的下标删除，O(log n)，并且只会删掉同一个对象。
+     */
+    @Override
+    public boolean remove(Object o) {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            int i = indexOf(o);
+            if (i < 0)
+                return false;
+            removeAt(i);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 原地修改一个任务的到期时间：改完以后根据新的到期时间上浮或者下沉，O(log n)。
+     * 比如每来一个请求就把连接的空闲超时往后推，不用先删除再放一个新的Task。
+     * @param task 队列里的任务
+     * @param delay 从现在开始的新延迟
+     * @return 任务不在队列里（已经到期被取走或者被删除了）返回false
+     */
+    @SuppressWarnings("unchecked")
+    public boolean reschedule(Task<?> task, long delay, TimeUnit unit) {
+        long nanos = unit.toNanos(delay);
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            int i = indexOf(task);
+            if (i < 0)
+                return false;
+            task.setDeadline(System.nanoTime() + nanos);
+            siftDown(i, task);
+            if (queue[i] == task)
+                siftUp(i, task);
+            //堆顶变了或者堆顶的到期时间变了，叫醒leader重新计算等待时间
+            if (i == 0 || queue[0] == task) {
+                leader = null;
+                available.signal();
+            } else if (perElementSlack) {
+                hint((E) task);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return indexOf(o) != -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 遍历和统计的时候每次加锁最多处理这么多个元素，挂着几百万个元素的时候也不会长时间占着锁
+     */
+    private static final int SCAN_CHUNK = 4096;
+
+    /**
+     * 弱一致性的迭代器，元素没有特定的顺序。
+     * 每次加锁只拷贝堆数组里的一小段，生产者和消费者不会被整个遍历挡住。
+     * 遍历期间队列被修改的话，被挪动过位置的元素可能被漏掉或者看到两次；不会抛ConcurrentModificationException。
+     */
     @Override
     public Iterator<E> iterator() {
-        return null;
+        return new Itr();
+    }
+
+    /**
+     * 当前所有元素的快照，元素没有特定的顺序。一次加锁完成，只做一次数组拷贝
+     */
+    @Override
+    public Object[] toArray() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return Arrays.copyOf(queue, size, Object[].class);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T[] toArray(T[] a) {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            if (a.length < size)
+                return (T[]) Arrays.copyOf(queue, size, a.getClass());
+            System.arraycopy(queue, 0, a, 0, size);
+            if (a.length > size)
+                a[size] = null;
+            return a;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 按剩余延迟分桶计数，给监控用：第i个桶是剩余延迟在 [i * bucketWidth, (i + 1) * bucketWidth) 之间的元素个数，
+     * 已经到期的算在第0个桶，超出范围的算在最后一个桶。
+     * 和迭代器一样分段加锁，每段只读元素的到期时间，不拷贝元素；遍历期间被修改的话结果是近似的。
+     */
+    public long[] deadlineHistogram(long bucketWidth, TimeUnit unit, int buckets) {
+        long width = unit.toNanos(bucketWidth);
+        if (width <= 0 || buckets <= 0)
+            throw new IllegalArgumentException();
+        long[] counts = new long[buckets];
+        long now = clock.nanoTime();
+        final ReentrantLock lock = this.lock;
+        for (int from = 0; ; from += SCAN_CHUNK) {
+            lock.lock();
+            try {
+                int to = Math.min(from + SCAN_CHUNK, size);
+                if (from >= to)
+                    return counts;
+                for (int i = from; i < to; i++) {
+                    long delay = ((Delayed) queue[i]).getDeadline() - now;
+                    long bucket = delay <= 0 ? 0 : delay / width;
+                    counts[bucket >= buckets ? buckets - 1 : (int) bucket]++;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 删掉所有元素，包括还没到期的
+     */
+    @Override
+    public void clear() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            for (int i = 0; i < size; i++) {
+                setIndex(queue[i], -1);
+                queue[i] = null;
+            }
+            size = 0;
+            if (capacity != Integer.MAX_VALUE)
+                notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 分段拷贝堆数组的迭代器，参见iterator
+     */
+    private class Itr implements Iterator<E> {
+        /**
+         * 下一段从堆的哪个下标开始拷贝
+         */
+        private int cursor;
+
+        private Object[] chunk;
+
+        private int chunkSize;
+
+        private int chunkPos;
+
+        private E lastRet;
+
+        @Override
+        public boolean hasNext() {
+            if (chunkPos < chunkSize)
+                return true;
+            fill();
+            return chunkPos < chunkSize;
+        }
+
+        private void fill() {
+            final ReentrantLock lock = CDelayQueue.this.lock;
+            lock.lock();
+            try {
+                int n = Math.min(SCAN_CHUNK, size - cursor);
+                if (n <= 0) {
+                    chunkSize = chunkPos = 0;
+                    return;
+                }
+                if (chunk == null)
+                    chunk = new Object[Math.min(SCAN_CHUNK, Math.max(n, 16))];
+                else if (chunk.length < n)
+                    chunk = new Object[SCAN_CHUNK];
+                System.arraycopy(queue, cursor, chunk, 0, n);
+                cursor += n;
+                chunkSize = n;
+                chunkPos = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            lastRet = (E) chunk[chunkPos];
+            chunk[chunkPos++] = null;
+            return lastRet;
+        }
+
+        @Override
+        public void remove() {
+            if (lastRet == null)
+                throw new IllegalStateException();
+            CDelayQueue.this.remove(lastRet);
+            lastRet = null;
+        }
     }
 
     @Override
@@ -102,20 +601,51 @@ public class CDelayQueue<E extends Delayed> extends AbstractQueue<E> implements
         final ReentrantLock lock = this.lock;
         lock.lock();
         try {
-            return q.size();
+            return size;
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * 放入一个元素，有界并且满了的时候一直等到有空位
+     */
     @Override
     public void put(E e) throws InterruptedException {
-         offer(e);
+        if (e == null)
+            throw new NullPointerException();
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            while (size >= capacity)
+                notFull.await();
+            enqueue(e);
+        } finally {
+            lock.unlock();
+        }
     }
 
+    /**
+     * 放入一个元素，有界并且满了的时候最多等timeout，还没有空位返回false
+     */
     @Override
     public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
-        return offer(e);
+        if (e == null)
+            throw new NullPointerException();
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            while (size >= capacity) {
+                if (nanos <= 0)
+                    return false;
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(e);
+            return true;
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
@@ -124,25 +654,26 @@ public class CDelayQueue<E extends Delayed> extends AbstractQueue<E> implements
         lock.lockInterruptibly();//上锁，如果当前线程被中断，那么抛出异常无法获取锁
         try {
             for (;;) {//循环检测
-                E first = q.peek(); //去获取优先队列中index为0的对象（在优先队列中是通过数组实现）
+                E first = head(); //去获取堆中index为0的对象，也就是最早到期的那个
                 if (first == null) {//如果没有拿到，那么就让该线程等待
-                    System.out.println("awaiting");
                     available.await();//该线程一直等待，直到被signal唤醒或interrupted
                 }else {//如果第一个元素拿到了
                     /**
-                     * 那么就去获取到第一个元素所设置的延迟时间。
-                     * 我们队列中的每个元素都是实现了Delayed接口的，所以是可以拿到元素自定义的getDelay的延迟时间的
+                     * 那么就去获取到第一个元素的到期时间，和当前时间一减就是剩下的延迟。
+                     * 每一轮只读一次时钟，到期时间是元素自己记住的，不用再调getDelay换算
                      */
-                    long delay = first.getDelay(NANOSECONDS);
+                    long now = clock.nanoTime();
+                    long delay = first.getDeadline() - now;
                     /**
                      * 如果延迟为小于等于0，那么就意味着这个任务到点了，要被执行了，于是就弹出该任务（元素）。
                      */
                     if (delay <= 0)
                         //弹出该元素，然后返回（得到，然后从队列中删除掉），本次take执行完成。
-                        return q.poll();
+                        return finishPoll(first);
                     /**
                      * 如果delay大于0，说明该任务还没到时间点
                      */
+                    long wait = leader != null ? 0 : leaderWait(first, delay, now);
                     first = null; //那么就把这个first给置为null
 
                     /**
@@ -159,9 +690,13 @@ public class CDelayQueue<E extends Delayed> extends AbstractQueue<E> implements
                     else {
                         Thread thisThread = Thread.currentThread();//当前线程
                         leader = thisThread; //把当前线程设置为leader
+                        LatencyHistogram leaderWaits = this.leaderWaits;
+                        long start = leaderWaits == null ? 0 : System.nanoTime();
                         try {
-                            available.awaitNanos(delay);//等待指定delay时间
+                            available.awaitNanos(wait);//等待指定delay时间，再加上允许的slack
                         } finally {
+                            if (leaderWaits != null)
+                                leaderWaits.record(System.nanoTime() - start);
                            if (leader == thisThread)
                                 leader = null;
                         }
@@ -169,40 +704,240 @@ public class CDelayQueue<E extends Delayed> extends AbstractQueue<E> implements
                 }
             }
         } finally {
-            if (leader == null && q.peek() != null){
-                System.out.println("激活线程");
-                available.signal();}
+            if (leader == null && queue[0] != null)
+                available.signal();
             lock.unlock();
         }
     }
 
+    /**
+     * 和take一样，只是最多等待timeout这么长时间。
+     * 如果堆顶的任务在超时之前到期，就由leader等到它到期为止；否则直接等到超时，返回null。
+     */
     @Override
     public E poll(long timeout, TimeUnit unit) throws InterruptedException {
-        return null;
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            for (;;) {
+                E first = head();
+                if (first == null) {
+                    if (nanos <= 0)
+                        return null;
+                    else
+                        nanos = available.awaitNanos(nanos);
+                } else {
+                    long now = clock.nanoTime();
+                    long delay = first.getDeadline() - now;
+                    if (delay <= 0)
+                        return finishPoll(first);
+                    if (nanos <= 0)
+                        return null;
+                    long wait = leader != null || nanos < delay ? 0 : leaderWait(first, delay, now);
+                    first = null; // don't retain ref while waiting
+                    if (nanos < wait || leader != null || nanos < delay)
+                        nanos = available.awaitNanos(nanos);
+                    else {
+                        Thread thisThread = Thread.currentThread();
+                        leader = thisThread;
+                        LatencyHistogram leaderWaits = this.leaderWaits;
+                        long start = leaderWaits == null ? 0 : System.nanoTime();
+                        try {
+                            long timeLeft = available.awaitNanos(wait);
+                            nanos -= wait - timeLeft;
+                        } finally {
+                            if (leaderWaits != null)
+                                leaderWaits.record(System.nanoTime() - start);
+                            if (leader == thisThread)
+                                leader = null;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (leader == null && queue[0] != null)
+                available.signal();
+            lock.unlock();
+        }
     }
 
     @Override
     public int remainingCapacity() {
-        return 0;
+        if (capacity == Integer.MAX_VALUE)
+            return Integer.MAX_VALUE;
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return capacity - size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 返回堆顶元素，但只在它在now之前已经到期的时候。Call only when holding lock.
+     */
+    private E peekExpired(long now) {
+        // assert lock.isHeldByCurrentThread();
+        E first = head();
+        return (first == null || first.getDeadline() - now > 0) ?
+                null : first;
     }
 
     @Override
     public int drainTo(Collection<? super E> c) {
-        return 0;
+        return drainTo(c, Integer.MAX_VALUE);
     }
 
+    /**
+     * 在一次加锁里把所有已经到期的元素（最多maxElements个）按到期顺序移到c中。
+     * 同一时刻到期的任务很多的时候，比一个一个地take少了大量的加锁和唤醒。
+     */
     @Override
     public int drainTo(Collection<? super E> c, int maxElements) {
-        return 0;
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        if (maxElements <= 0)
+            return 0;
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            E first;
+            int n = 0;
+            long now = clock.nanoTime();
+            while (n < maxElements && (first = peekExpired(now)) != null) {
+                c.add(first);   // In this order, in case add() throws.
+                finishPoll(first);
+                ++n;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
     }
 
+    /**
+     * 放入一个元素，有界并且满了的时候直接返回false
+     */
     @Override
     public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
         final ReentrantLock lock = this.lock;
         lock.lock();
         try {
-            q.offer(e);
-            if (q.peek() == e) {
+            if (size >= capacity)
+                return false;
+            enqueue(e);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把e放进堆里，必要时叫醒leader。Call only when holding lock.
+     */
+    private void enqueue(E e) {
+        int i = size;
+        if (i >= queue.length)
+            grow();
+        size = i + 1;
+        if (i == 0) {
+            queue[0] = e;
+            setIndex(e, 0);
+        } else {
+            siftUp(i, e);
+        }
+        if (hasOwnSlack(e))
+            perElementSlack = true;
+        if (queue[0] == e) {
+            // 新的堆顶在leader醒来之前不必触发的话，就不用叫醒leader重新等了
+            if (leader == null || (slack == 0 && !perElementSlack) || wakesBefore(e, leaderWakeAt)) {
+                leader = null;
+                available.signal();
+            }
+        } else if (perElementSlack) {
+            hint(e);
+        }
+    }
+
+    /**
+     * e的最晚触发时间是否早于when。Call only when holding lock.
+     */
+    private boolean wakesBefore(E e, long when) {
+        long latest = e.getDeadline() + Math.min(slackOf(e), MAX_WAIT);
+        return latest - when < 0;
+    }
+
+    /**
+     * 不在堆顶的e自带的slack更小时，它的最晚触发时间可能比堆顶的还早，记到wakeHint里，
+     * 必要时叫醒leader重新计算要等多久。Call only when holding lock.
+     */
+    private void hint(E e) {
+        long latest = e.getDeadline() + Math.min(slackOf(e), MAX_WAIT);
+        if (!hasWakeHint || latest - wakeHint < 0) {
+            wakeHint = latest;
+            hasWakeHint = true;
+        }
+        if (leader != null && latest - leaderWakeAt < 0) {
+            leader = null;
+            available.signal();
+        }
+    }
+
+    /**
+     * 批量放入，只加一次锁，数组只扩容一次。
+     * 放入的元素比队列里原有的还多时，先全部追加到数组末尾，再用Floyd算法自底向上建堆，O(n)；
+     * 否则逐个上浮，O(k log n)。比如重启后从TaskJournal恢复几百万个任务，就走前一种。
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean addAll(Collection<? extends E> c) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        Object[] a = c.toArray();
+        if (a.length == 0)
+            return false;
+        for (Object e : a)
+            if (e == null)
+                throw new NullPointerException();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            if (a.length > capacity - size)
+                throw new IllegalStateException("Queue full");
+            Object oldHead = queue[0];
+            int n = size;
+            int newSize = n + a.length;
+            if (newSize < 0)
+                throw new OutOfMemoryError();
+            if (newSize > queue.length)
+                queue = Arrays.copyOf(queue, Math.max(newSize, queue.length + (queue.length >> 1)));
+            if (a.length >= n) {
+                System.arraycopy(a, 0, queue, n, a.length);
+                size = newSize;
+                for (int i = n; i < newSize; i++)
+                    setIndex(queue[i], i);
+                for (int i = (newSize >>> 1) - 1; i >= 0; i--)
+                    siftDown(i, (Delayed) queue[i]);
+            } else {
+                for (Object e : a)
+                    siftUp(size++, (Delayed) e);
+            }
+            for (Object e : a)
+                if (hasOwnSlack(e))
+                    perElementSlack = true;
+            if (perElementSlack)
+                for (Object e : a)
+                    if (e != queue[0])
+                        hint((E) e);
+            if (queue[0] != oldHead) {
                 leader = null;
                 available.signal();
             }
@@ -212,12 +947,16 @@ public class CDelayQueue<E extends Delayed> extends AbstractQueue<E> implements
         }
     }
 
+    /**
+     * 只返回已经到期的堆顶元素，没有到期的返回null
+     */
     @Override
     public E poll() {
         final ReentrantLock lock = this.lock;
         lock.lock();
         try {
-            return q.poll();
+            E first = peekExpired(clock.nanoTime());
+            return first == null ? null : finishPoll(first);
         } finally {
             lock.unlock();
         }
@@ -228,7 +967,7 @@ public class CDelayQueue<E extends Delayed> extends AbstractQueue<E> implements
         final ReentrantLock lock = this.lock;
         lock.lock();
         try {
-            return q.peek();
+            return head();
         } finally {
             lock.unlock();
         }
@@ -0,0 +1,38 @@
+package com.importsource.concurrency.custom.queue.delay;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 粗粒度的缓存时钟，参见NanoClock#coarse
+ */
+public class CoarseNanoClock implements NanoClock {
+
+    private volatile long now = System.nanoTime();
+
+    private volatile boolean running = true;
+
+    private final Thread ticker;
+
+    CoarseNanoClock(final long resolutionNanos) {
+        if (resolutionNanos <= 0)
+            throw new IllegalArgumentException();
+        ticker = new Thread(() -> {
+            while (running) {
+                LockSupport.parkNanos(resolutionNanos);
+                now = System.nanoTime();
+            }
+        }, "coarse-nano-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    @Override
+    public long nanoTime() {
+        return now;
+    }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(ticker);
+    }
+}
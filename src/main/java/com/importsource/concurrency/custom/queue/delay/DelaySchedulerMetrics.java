@@ -0,0 +1,162 @@
+package com.importsource.concurrency.custom.queue.delay;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 延时任务调度器的指标，时间都按纳秒记录在LatencyHistogram里，通过JMX以微秒发布
+ */
+public class DelaySchedulerMetrics implements DelaySchedulerMetricsMBean {
+
+    /**
+     * 实际开始执行的时间 - 计划的到期时间
+     */
+    final LatencyHistogram firingLateness = new LatencyHistogram();
+
+    /**
+     * 延迟队列里leader每次等待的时长
+     */
+    final LatencyHistogram leaderWait = new LatencyHistogram();
+
+    final LatencyHistogram batchSize = new LatencyHistogram();
+
+    /**
+     * 从executor.execute到任务开始执行
+     */
+    final LatencyHistogram handoffLatency = new LatencyHistogram();
+
+    private final BlockingQueue<?> queue;
+
+    DelaySchedulerMetrics(BlockingQueue<?> queue) {
+        this.queue = queue;
+    }
+
+    public LatencyHistogram getFiringLateness() {
+        return firingLateness;
+    }
+
+    public LatencyHistogram getLeaderWait() {
+        return leaderWait;
+    }
+
+    public LatencyHistogram getBatchSize() {
+        return batchSize;
+    }
+
+    public LatencyHistogram getHandoffLatency() {
+        return handoffLatency;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    @Override
+    public long getFiredCount() {
+        return firingLateness.getCount();
+    }
+
+    @Override
+    public long getFiringLatenessP50Micros() {
+        return micros(firingLateness.getPercentile(50));
+    }
+
+    @Override
+    public long getFiringLatenessP99Micros() {
+        return micros(firingLateness.getPercentile(99));
+    }
+
+    @Override
+    public long getFiringLatenessP999Micros() {
+        return micros(firingLateness.getPercentile(99.9));
+    }
+
+    @Override
+    public long getFiringLatenessMaxMicros() {
+        return micros(firingLateness.getMax());
+    }
+
+    @Override
+    public double getFiringLatenessMeanMicros() {
+        return firingLateness.getMean() / 1000;
+    }
+
+    @Override
+    public long getLeaderWaitP50Micros() {
+        return micros(leaderWait.getPercentile(50));
+    }
+
+    @Override
+    public long getLeaderWaitP99Micros() {
+        return micros(leaderWait.getPercentile(99));
+    }
+
+    @Override
+    public long getLeaderWaitMaxMicros() {
+        return micros(leaderWait.getMax());
+    }
+
+    @Override
+    public long getBatchSizeP50() {
+        return batchSize.getPercentile(50);
+    }
+
+    @Override
+    public long getBatchSizeP99() {
+        return batchSize.getPercentile(99);
+    }
+
+    @Override
+    public long getBatchSizeMax() {
+        return batchSize.getMax();
+    }
+
+    @Override
+    public double getBatchSizeMean() {
+        return batchSize.getMean();
+    }
+
+    @Override
+    public long getHandoffLatencyP50Micros() {
+        return micros(handoffLatency.getPercentile(50));
+    }
+
+    @Override
+    public long getHandoffLatencyP99Micros() {
+        return micros(handoffLatency.getPercentile(99));
+    }
+
+    @Override
+    public long getHandoffLatencyMaxMicros() {
+        return micros(handoffLatency.getMax());
+    }
+
+    @Override
+    public long[] deadlineHistogram(long bucketWidthMillis, int buckets) {
+        if (!(queue instanceof CDelayQueue))
+            return null;
+        return ((CDelayQueue<?>) queue).deadlineHistogram(bucketWidthMillis, TimeUnit.MILLISECONDS, buckets);
+    }
+
+    @Override
+    public void reset() {
+        firingLateness.reset();
+        leaderWait.reset();
+        batchSize.reset();
+        handoffLatency.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "depth=" + getQueueDepth()
+                + "\nfiringLateness(ns): " + firingLateness
+                + "\nleaderWait(ns): " + leaderWait
+                + "\nbatchSize: " + batchSize
+                + "\nhandoffLatency(ns): " + handoffLatency;
+    }
+}
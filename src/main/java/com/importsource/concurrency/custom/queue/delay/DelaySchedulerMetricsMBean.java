@@ -0,0 +1,63 @@
+package com.importsource.concurrency.custom.queue.delay;
+
+/**
+ * 延时任务调度器的JMX接口，时间的单位都是微秒
+ */
+public interface DelaySchedulerMetricsMBean {
+
+    /**
+     * 队列里还有多少个任务
+     */
+    int getQueueDepth();
+
+    long getFiredCount();
+
+    /**
+     * 任务真正开始执行的时间比计划晚了多久
+     */
+    long getFiringLatenessP50Micros();
+
+    long getFiringLatenessP99Micros();
+
+    long getFiringLatenessP999Micros();
+
+    long getFiringLatenessMaxMicros();
+
+    double getFiringLatenessMeanMicros();
+
+    /**
+     * leader每次在队列上等了多久
+     */
+    long getLeaderWaitP50Micros();
+
+    long getLeaderWaitP99Micros();
+
+    long getLeaderWaitMaxMicros();
+
+    /**
+     * 每次从队列里取出多少个到期的任务
+     */
+    long getBatchSizeP50();
+
+    long getBatchSizeP99();
+
+    long getBatchSizeMax();
+
+    double getBatchSizeMean();
+
+    /**
+     * 从交给线程池到线程池开始执行用了多久
+     */
+    long getHandoffLatencyP50Micros();
+
+    long getHandoffLatencyP99Micros();
+
+    long getHandoffLatencyMaxMicros();
+
+    /**
+     * 按剩余延迟分桶的任务数，参见CDelayQueue#deadlineHistogram；队列不是CDelayQueue的时候返回null
+     */
+    long[] deadlineHistogram(long bucketWidthMillis, int buckets);
+
+    void reset();
+}
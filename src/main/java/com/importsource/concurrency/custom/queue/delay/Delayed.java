@@ -13,4 +13,12 @@ public interface Delayed extends Comparable<Delayed> {
      * @return 剩余的时间; 零值或负值表示早已过期
      */
     long getDelay(TimeUnit unit);
+
+    /**
+     * 返回到期的时间点（System.nanoTime）。延迟队列排序和判断是否到期都只比较它，不用每次比较都读时钟。
+     * 默认由getDelay推算，要读一次时钟；能直接记住到期时间的实现（比如Task）应该覆盖它。
+     */
+    default long getDeadline() {
+        return System.nanoTime() + getDelay(TimeUnit.NANOSECONDS);
+    }
 }
@@ -0,0 +1,110 @@
+package com.importsource.concurrency.custom.queue.delay;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 固定桶的直方图，和HdrHistogram一样按"指数+线性"分桶：
+ * 每个2的幂区间再平均分成8个子桶，相对误差不超过12.5%，覆盖0 ~ Long.MAX_VALUE一共496个桶。
+ *
+ * 桶的下标用numberOfLeadingZeros和移位算出来，record只做几次原子加，不分配任何对象，可以放在热路径上。
+ * 各个计数之间不是原子快照，读的时候可能和正在进行的record有一点出入，对监控来说无所谓。
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 记录一个值，负数按0算
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value))
+            ;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * 第i个桶里的最大值
+     */
+    private static long upperBound(int i) {
+        if (i < SUB_BUCKETS)
+            return i;
+        int shift = (i >>> SUB_BUCKET_BITS) - 1;
+        long low = ((long) (SUB_BUCKETS + (i & (SUB_BUCKETS - 1)))) << shift;
+        long high = low + (1L << shift) - 1;
+        return high < 0 ? Long.MAX_VALUE : high;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long c = count.get();
+        return c == 0 ? 0 : (double) sum.get() / c;
+    }
+
+    /**
+     * 百分位数，返回所在桶的上界（不超过记录到的最大值），没有数据返回0
+     * @param percentile 0 ~ 100
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += counts.get(i);
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", mean=" + (long) getMean() + ", p50=" + getPercentile(50)
+                + ", p99=" + getPercentile(99) + ", p99.9=" + getPercentile(99.9) + ", max=" + getMax();
+    }
+}
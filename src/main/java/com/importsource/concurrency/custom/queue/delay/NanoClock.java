@@ -0,0 +1,25 @@
+package com.importsource.concurrency.custom.queue.delay;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 延迟队列判断是否到期用的时钟，和System.nanoTime的刻度一样
+ */
+public interface NanoClock {
+
+    /**
+     * 直接读System.nanoTime
+     */
+    NanoClock SYSTEM = System::nanoTime;
+
+    long nanoTime();
+
+    /**
+     * 粗粒度的缓存时钟：由一个守护线程每隔resolution读一次System.nanoTime存起来，
+     * nanoTime只是读一个volatile变量。读到的值最多比真实时间慢resolution，不会快。
+     * 用完要调用CoarseNanoClock#stop。
+     */
+    static CoarseNanoClock coarse(long resolution, TimeUnit unit) {
+        return new CoarseNanoClock(unit.toNanos(resolution));
+    }
+}
@@ -0,0 +1,405 @@
+package com.importsource.concurrency.custom.queue.delay;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 用基本类型数组实现的四叉堆延时队列
+ *
+ * CDelayQueue里每个定时任务都要一个Task对象、一个Runnable、一次全局AtomicLong自增和一个堆槽位，
+ * 挂着几百万个定时任务的时候，老年代里全是这些小对象，GC标记的时间占了大头。
+ *
+ * 这里把排序要用的东西都放进基本类型的数组：
+ * 1.keys是一个long[]，第i个元素的到期时间和序号挨着放在keys[2i]、keys[2i+1]，比较的时候直接读long，
+ *   不用调compareTo，也不用走Delayed接口。
+ * 2.堆是四叉的：i的孩子是4i+1 ~ 4i+4，四个孩子的key是keys[8i+2]开始的连续64个字节，最多跨两条缓存行，
+ *   而用对象做元素的堆每个孩子都要多读一个对象。树的高度也比二叉堆低一半。
+ *   这64个字节不保证落在一条缓存行里：JVM只按8字节对齐对象，数组的起始地址和缓存行没有固定关系，
+ *   在数组里加填充也对齐不了。
+ * 3.任务本身（payload）放在单独的句柄表里，堆里只存句柄表的下标（int）。schedule返回一个long句柄，
+ *   高32位是槽位的代数，低32位是槽位下标，槽位被回收再利用以后旧句柄自然就失效了，cancel不会误删。
+ * 4.序号是队列自己的long计数器，在锁里自增，不需要AtomicLong。
+ *
+ * 基本类型数组里没有引用，GC不用扫描它们；每个任务在堆上只剩payload自己。
+ * 和CDelayQueue一样，take使用Leader-Follower模式。
+ *
+ * 它不是BlockingQueue，TaskQueueDaemonThread用不了，目前只在基准测试里和CDelayQueue比较。
+ *
+ * @param <E> 任务类型，一般是Runnable
+ */
+public class PrimitiveDelayQueue<E> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * 延迟上限，超过它的按它算，这样用减法比较到期时间就不会溢出
+     */
+    private static final long MAX_DELAY = Long.MAX_VALUE >> 1;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition available = lock.newCondition();
+
+    /**
+     * 堆：keys[2i]是第i个元素的到期时间（System.nanoTime），keys[2i+1]是它的序号
+     */
+    private long[] keys = new long[INITIAL_CAPACITY << 1];
+
+    /**
+     * 堆：第i个元素在句柄表里的槽位
+     */
+    private int[] heapSlots = new int[INITIAL_CAPACITY];
+
+    private int size;
+
+    /**
+     * 句柄表：槽位上放的任务
+     */
+    private Object[] payloads = new Object[INITIAL_CAPACITY];
+
+    /**
+     * 句柄表：槽位上的任务在堆里的下标，空闲槽位为-1
+     */
+    private int[] positions = new int[INITIAL_CAPACITY];
+
+    /**
+     * 句柄表：槽位的代数，每回收一次加一
+     */
+    private int[] generations = new int[INITIAL_CAPACITY];
+
+    /**
+     * 空闲槽位的栈
+     */
+    private int[] freeSlots = new int[INITIAL_CAPACITY];
+
+    private int freeCount;
+
+    /**
+     * 从来没用过的第一个槽位
+     */
+    private int nextUnusedSlot;
+
+    private long sequence;
+
+    /**
+     * Leader-Follower模式中的leader，参见CDelayQueue
+     */
+    private Thread leader = null;
+
+    public PrimitiveDelayQueue() {
+        Arrays.fill(positions, -1);
+    }
+
+    /**
+     * 放入一个任务
+     * @return 句柄，用于cancel
+     */
+    public long schedule(long delay, TimeUnit unit, E payload) {
+        if (payload == null)
+            throw new NullPointerException();
+        long nanos = unit.toNanos(delay);
+        if (nanos > MAX_DELAY)
+            nanos = MAX_DELAY;
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            long deadline = System.nanoTime() + nanos;
+            int slot = allocateSlot();
+            payloads[slot] = payload;
+            int i = size;
+            if (i >= heapSlots.length)
+                growHeap();
+            size = i + 1;
+            siftUp(i, deadline, sequence++, slot);
+            if (positions[slot] == 0) {
+                leader = null;
+                available.signal();
+            }
+            return handle(slot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取消一个任务，O(log n)
+     * @return 任务还在队列里并且被删除了返回true；已经被取走、已经取消过或者句柄无效返回false
+     */
+    public boolean cancel(long handle) {
+        int slot = (int) handle;
+        int generation = (int) (handle >>> 32);
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            if (slot < 0 || slot >= nextUnusedSlot || generations[slot] != generation || positions[slot] < 0)
+                return false;
+            removeAt(positions[slot]);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public E take() throws InterruptedException {
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            for (;;) {
+                if (size == 0)
+                    available.await();
+                else {
+                    long delay = keys[0] - System.nanoTime();
+                    if (delay <= 0)
+                        return removeAt(0);
+                    if (leader != null)
+                        available.await();
+                    else {
+                        Thread thisThread = Thread.currentThread();
+                        leader = thisThread;
+                        try {
+                            available.awaitNanos(delay);
+                        } finally {
+                            if (leader == thisThread)
+                                leader = null;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (leader == null && size != 0)
+                available.signal();
+            lock.unlock();
+        }
+    }
+
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            for (;;) {
+                if (size == 0) {
+                    if (nanos <= 0)
+                        return null;
+                    else
+                        nanos = available.awaitNanos(nanos);
+                } else {
+                    long delay = keys[0] - System.nanoTime();
+                    if (delay <= 0)
+                        return removeAt(0);
+                    if (nanos <= 0)
+                        return null;
+                    if (nanos < delay || leader != null)
+                        nanos = available.awaitNanos(nanos);
+                    else {
+                        Thread thisThread = Thread.currentThread();
+                        leader = thisThread;
+                        try {
+                            long timeLeft = available.awaitNanos(delay);
+                            nanos -= delay - timeLeft;
+                        } finally {
+                            if (leader == thisThread)
+                                leader = null;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (leader == null && size != 0)
+                available.signal();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 只返回已经到期的任务，没有到期的返回null
+     */
+    public E poll() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            if (size == 0 || keys[0] - System.nanoTime() > 0)
+                return null;
+            return removeAt(0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 在一次加锁里取走所有已经到期的任务（最多maxElements个），时钟只读一次
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            int n = 0;
+            while (n < maxElements && size != 0 && keys[0] - now <= 0) {
+                c.add(removeAt(0));
+                ++n;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * 最早到期的任务还剩多少时间到期，队列为空返回-1
+     */
+    public long getDelay(TimeUnit unit) {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return size == 0 ? -1 : unit.convert(keys[0] - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long handle(int slot) {
+        return ((long) generations[slot] << 32) | (slot & 0xFFFFFFFFL);
+    }
+
+    /**
+     * 分配一个句柄表的槽位。Call only when holding lock.
+     */
+    private int allocateSlot() {
+        if (freeCount > 0)
+            return freeSlots[--freeCount];
+        if (nextUnusedSlot == payloads.length) {
+            int newCapacity = newCapacity(payloads.length);
+            payloads = Arrays.copyOf(payloads, newCapacity);
+            generations = Arrays.copyOf(generations, newCapacity);
+            freeSlots = Arrays.copyOf(freeSlots, newCapacity);
+            int oldCapacity = positions.length;
+            positions = Arrays.copyOf(positions, newCapacity);
+            Arrays.fill(positions, oldCapacity, newCapacity, -1);
+        }
+        return nextUnusedSlot++;
+    }
+
+    /**
+     * 回收槽位，代数加一让旧句柄失效。Call only when holding lock.
+     */
+    private void freeSlot(int slot) {
+        payloads[slot] = null;
+        positions[slot] = -1;
+        generations[slot]++;
+        freeSlots[freeCount++] = slot;
+    }
+
+    private void growHeap() {
+        int newCapacity = newCapacity(heapSlots.length);
+        heapSlots = Arrays.copyOf(heapSlots, newCapacity);
+        keys = Arrays.copyOf(keys, newCapacity << 1);
+    }
+
+    private static int newCapacity(int oldCapacity) {
+        int newCapacity = oldCapacity + (oldCapacity >> 1); // grow 50%
+        if (newCapacity < 0 || newCapacity > (Integer.MAX_VALUE >> 1)) // keys的长度是容量的两倍
+            throw new OutOfMemoryError();
+        return newCapacity;
+    }
+
+    /**
+     * (d1, s1) 是否排在 (d2, s2) 前面
+     */
+    private static boolean before(long d1, long s1, long d2, long s2) {
+        long diff = d1 - d2;
+        return diff < 0 || (diff == 0 && s1 < s2);
+    }
+
+    /**
+     * 把元素放到堆的第k个位置并更新句柄表
+     */
+    private void set(int k, long deadline, long seq, int slot) {
+        keys[k << 1] = deadline;
+        keys[(k << 1) + 1] = seq;
+        heapSlots[k] = slot;
+        positions[slot] = k;
+    }
+
+    /**
+     * Sifts element at k up to its heap-ordered spot.
+     * Call only when holding lock.
+     */
+    private void siftUp(int k, long deadline, long seq, int slot) {
+        while (k > 0) {
+            int parent = (k - 1) >>> 2;
+            long pd = keys[parent << 1], ps = keys[(parent << 1) + 1];
+            if (!before(deadline, seq, pd, ps))
+                break;
+            set(k, pd, ps, heapSlots[parent]);
+            k = parent;
+        }
+        set(k, deadline, seq, slot);
+    }
+
+    /**
+     * Sifts element at k down to its heap-ordered spot.
+     * Call only when holding lock.
+     */
+    private void siftDown(int k, long deadline, long seq, int slot) {
+        for (;;) {
+            int child = (k << 2) + 1;
+            if (child >= size)
+                break;
+            int end = Math.min(child + 4, size);
+            int best = child;
+            long bd = keys[child << 1], bs = keys[(child << 1) + 1];
+            for (int c = child + 1; c < end; c++) {
+                long cd = keys[c << 1], cs = keys[(c << 1) + 1];
+                if (before(cd, cs, bd, bs)) {
+                    best = c;
+                    bd = cd;
+                    bs = cs;
+                }
+            }
+            if (!before(bd, bs, deadline, seq))
+                break;
+            set(k, bd, bs, heapSlots[best]);
+            k = best;
+        }
+        set(k, deadline, seq, slot);
+    }
+
+    /**
+     * 删除堆中第i个元素，返回它的任务。Call only when holding lock.
+     */
+    @SuppressWarnings("unchecked")
+    private E removeAt(int i) {
+        int slot = heapSlots[i];
+        E payload = (E) payloads[slot];
+        freeSlot(slot);
+        int s = --size;
+        if (s != i) {
+            long d = keys[s << 1], q = keys[(s << 1) + 1];
+            int lastSlot = heapSlots[s];
+            siftDown(i, d, q, lastSlot);
+            if (positions[lastSlot] == i)
+                siftUp(i, d, q, lastSlot);
+        }
+        return payload;
+    }
+}
@@ -0,0 +1,369 @@
+package com.importsource.concurrency.custom.queue.delay;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 基于跳表的无锁延时队列
+ *
+ * CDelayQueue里所有消费者都在同一把锁上排队，同一时刻只有leader一个线程在取元素，
+ * 多个分发线程的时候follower大部分时间都在睡。
+ *
+ * 这里的做法是：
+ * 1.元素包在Node里放进ConcurrentSkipListSet，按（到期时间，序号）排序，和Task.compareTo一样，
+ *   到期时间在放入的时候读一次，之后比较只比较long。
+ * 2.取元素的时候从头往后扫已经到期的那一段，用CAS把Node标记为已认领，谁CAS成功就归谁，然后再从跳表里删掉它。
+ *   几个消费者同时来取的时候，CAS失败的直接去认领下一个到期的Node，不会在同一把锁上轮流等。
+ * 3.只有没有到期元素可取的消费者才需要睡。睡的时候仍然是Leader-Follower：只有leader按堆顶的到期时间定时等待，
+ *   follower一直等到被叫醒。leader用CAS抢，取到元素离开时叫醒一个follower；
+ *   生产者放入的元素成为新的队头时叫醒leader（没有leader就叫醒一个follower）。
+ *
+ * 注意：元素放入以后到期时间就固定了，不支持像CDelayQueue#reschedule那样在队列里修改到期时间；
+ * remove需要从头扫描，是O(n)。
+ */
+public class SkipListDelayQueue<E extends Delayed> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    static final class Node<E> {
+        final long deadline;
+        final long seq;
+        final E item;
+
+        /**
+         * 0表示还在队列里，1表示已经被某个消费者认领（或者被remove），跳表里随后会删掉它
+         */
+        volatile int claimed;
+
+        Node(long deadline, long seq, E item) {
+            this.deadline = deadline;
+            this.seq = seq;
+            this.item = item;
+        }
+
+        boolean claim() {
+            return claimed == 0 && CLAIMED.compareAndSet(this, 0, 1);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Node> CLAIMED =
+            AtomicIntegerFieldUpdater.newUpdater(Node.class, "claimed");
+
+    private static final Comparator<Node<?>> ORDER = new Comparator<Node<?>>() {
+        @Override
+        public int compare(Node<?> a, Node<?> b) {
+            if (a == b)
+                return 0;
+            long diff = a.deadline - b.deadline;
+            if (diff != 0)
+                return diff < 0 ? -1 : 1;
+            return a.seq < b.seq ? -1 : (a.seq > b.seq ? 1 : 0);
+        }
+    };
+
+    private final ConcurrentSkipListSet<Node<E>> nodes = new ConcurrentSkipListSet<Node<E>>(ORDER);
+
+    private final AtomicLong sequencer = new AtomicLong();
+
+    /**
+     * 还没有被认领的元素个数
+     */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Leader-Follower模式中的leader，参见CDelayQueue
+     */
+    private final AtomicReference<Thread> leader = new AtomicReference<Thread>();
+
+    /**
+     * 正在等待的消费者（包括leader）
+     */
+    private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<Thread>();
+
+    /**
+     * 第一个还没被认领的Node，没有返回null
+     */
+    private Node<E> first() {
+        for (Node<E> n : nodes)
+            if (n.claimed == 0)
+                return n;
+        return null;
+    }
+
+    /**
+     * 从头往后认领一个已经到期的Node，没有到期的返回null
+     */
+    private Node<E> claimExpired(long now) {
+        for (Node<E> n : nodes) {
+            if (n.deadline - now > 0)
+                return null;
+            if (n.claim()) {
+                unlink(n);
+                return n;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 认领成功以后调用：计数减一，从跳表里删掉
+     */
+    private void unlink(Node<E> n) {
+        count.decrementAndGet();
+        nodes.remove(n);
+    }
+
+    /**
+     * 队头变了：叫醒leader让它重新计算要等多久，没有leader就叫醒一个follower来当leader
+     */
+    private void signal() {
+        Thread l = leader.get();
+        if (l != null)
+            LockSupport.unpark(l);
+        else {
+            Thread w = waiters.peek();
+            if (w != null)
+                LockSupport.unpark(w);
+        }
+    }
+
+    /**
+     * 消费者离开之前调用：自己不是leader了、队列里还有元素，就叫醒一个follower接着干
+     */
+    private void leave(Thread me) {
+        waiters.remove(me);
+        leader.compareAndSet(me, null);
+        if (leader.get() == null && count.get() > 0) {
+            Thread w = waiters.peek();
+            if (w != null)
+                LockSupport.unpark(w);
+        }
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        Node<E> node = new Node<E>(e.getDeadline(), sequencer.getAndIncrement(), e);
+        nodes.add(node);
+        count.incrementAndGet();
+        if (first() == node)
+            signal();
+        return true;
+    }
+
+    @Override
+    public void put(E e) {
+        offer(e);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) {
+        return offer(e);
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E e = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        if (e == null)//只有被中断的时候才会发生
+            throw new InterruptedException();
+        return e;
+    }
+
+    /**
+     * timeout为Long.MAX_VALUE纳秒时一直等
+     */
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        long nanos = unit.toNanos(timeout);
+        boolean forever = nanos == Long.MAX_VALUE;
+        long start = System.nanoTime();
+        Node<E> got = claimExpired(start);
+        if (got != null)
+            return got.item;
+        Thread me = Thread.currentThread();
+        //先登记再检查队头，登记之后放入的元素一定会来叫醒
+        waiters.add(me);
+        try {
+            for (;;) {
+                long now = System.nanoTime();
+                got = claimExpired(now);
+                if (got != null)
+                    return got.item;
+                long left = forever ? Long.MAX_VALUE : nanos - (now - start);
+                if (left <= 0)
+                    return null;
+                Node<E> head = first();
+                if (head != null && head.deadline - now <= 0)
+                    continue;
+                if (leader.get() == null && leader.compareAndSet(null, me)) {
+                    head = first();//成为leader以后再看一次队头
+                    if (head == null) {
+                        if (forever)
+                            LockSupport.park(this);
+                        else
+                            LockSupport.parkNanos(this, left);
+                    } else {
+                        long delay = head.deadline - System.nanoTime();
+                        if (delay > 0)
+                            LockSupport.parkNanos(this, Math.min(delay, left));
+                    }
+                    leader.compareAndSet(me, null);
+                } else if (forever)
+                    LockSupport.park(this);
+                else
+                    LockSupport.parkNanos(this, left);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+        } finally {
+            leave(me);
+        }
+    }
+
+    /**
+     * 只返回已经到期的元素，没有到期的返回null
+     */
+    @Override
+    public E poll() {
+        Node<E> n = claimExpired(System.nanoTime());
+        return n == null ? null : n.item;
+    }
+
+    /**
+     * 返回最早到期的元素（不一定已经到期），队列为空时返回null
+     */
+    @Override
+    public E peek() {
+        Node<E> n = first();
+        return n == null ? null : n.item;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null)
+            return false;
+        for (Node<E> n : nodes) {
+            if (n.claimed == 0 && o.equals(n.item) && n.claim()) {
+                unlink(n);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (o == null)
+            return false;
+        for (Node<E> n : nodes)
+            if (n.claimed == 0 && o.equals(n.item))
+                return true;
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return Math.max(count.get(), 0);
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 取走已经到期的元素，时钟只读一次
+     */
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        long now = System.nanoTime();
+        int n = 0;
+        Node<E> got;
+        while (n < maxElements && (got = claimExpired(now)) != null) {
+            c.add(got.item);
+            ++n;
+        }
+        return n;
+    }
+
+    @Override
+    public void clear() {
+        for (Node<E> n : nodes)
+            if (n.claim())
+                unlink(n);
+    }
+
+    @Override
+    public Object[] toArray() {
+        List<Object> all = new ArrayList<Object>();
+        for (Node<E> n : nodes)
+            if (n.claimed == 0)
+                all.add(n.item);
+        return all.toArray();
+    }
+
+    /**
+     * 按到期时间从早到晚的快照迭代器
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Itr(toArray());
+    }
+
+    private class Itr implements Iterator<E> {
+        final Object[] array;
+        int cursor = 0;
+        int lastRet = -1;
+
+        Itr(Object[] array) {
+            this.array = array;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor < array.length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (cursor >= array.length)
+                throw new NoSuchElementException();
+            lastRet = cursor;
+            return (E) array[cursor++];
+        }
+
+        @Override
+        public void remove() {
+            if (lastRet < 0)
+                throw new IllegalStateException();
+            SkipListDelayQueue.this.remove(array[lastRet]);
+            lastRet = -1;
+        }
+    }
+}
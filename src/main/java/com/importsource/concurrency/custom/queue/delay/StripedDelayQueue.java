@@ -0,0 +1,506 @@
+package com.importsource.concurrency.custom.queue.delay;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * 分片（多生产者）延时队列
+ *
+ * CDelayQueue里所有的生产者（offer）和消费者（take）抢的是同一把锁，很多请求线程同时设置超时的时候，
+ * 生产者都会挂在这把锁上。
+ *
+ * 这里的做法是：
+ * 1.按CPU核数把队列拆成若干个分片（shard），每个分片是一个自己带锁的优先队列，生产者按线程散列到某一个分片上，
+ *   不同的生产者基本不会抢同一把锁。
+ * 2.每个分片把自己堆顶的到期时间发布到一个volatile字段里，消费者不用加分片的锁就能找到最早到期的那个分片，
+ *   只有真正要取元素的时候才去锁那一个分片（归并取）。
+ * 3.消费者之间仍然使用Leader-Follower模式，leader把自己正在等的时间点发布出来（wakeupDeadline），
+ *   生产者只有在新元素比这个时间点更早的时候才需要去拿消费者的锁叫醒它，绝大多数offer完全碰不到消费者的锁。
+ *
+ * 注意：不同分片之间没有全局的插入顺序，到期时间完全相同的两个元素，谁先被取出是不确定的。
+ */
+public class StripedDelayQueue<E extends Delayed> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    /**
+     * 分片
+     */
+    static final class Shard<E extends Delayed> {
+        final ReentrantLock lock = new ReentrantLock();
+
+        final PriorityQueue<E> q = new PriorityQueue<E>();
+
+        /**
+         * 堆顶元素的到期时间（System.nanoTime），分片为空时是Long.MAX_VALUE。
+         * 只在持有分片锁的时候写，消费者不加锁直接读。
+         */
+        volatile long headDeadline = Long.MAX_VALUE;
+
+        /**
+         * 重新计算堆顶的到期时间。Call only when holding lock.
+         */
+        void updateHead() {
+            E head = q.peek();
+            headDeadline = head == null ? Long.MAX_VALUE : deadlineOf(head.getDelay(NANOSECONDS));
+        }
+
+        /**
+         * 如果堆顶已经到期就弹出它，否则返回null
+         */
+        E pollExpired() {
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                E first = q.peek();
+                if (first == null || first.getDelay(NANOSECONDS) > 0)
+                    return null;
+                q.poll();
+                updateHead();
+                return first;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private final Shard<E>[] shards;
+
+    private final int mask;
+
+    /**
+     * 消费者的锁，只有消费者和需要叫醒消费者的生产者才会去拿
+     */
+    private final transient ReentrantLock lock = new ReentrantLock();
+
+    private final Condition available = lock.newCondition();
+
+    /**
+     * Leader-Follower模式中的leader，参见CDelayQueue
+     */
+    private Thread leader = null;
+
+    /**
+     * leader正在等待的时间点。生产者放入的元素比它早，才需要叫醒消费者。
+     * 消费者在扫描分片之前把它置为Long.MAX_VALUE，这样扫描期间放入的元素一定会触发一次唤醒，不会丢信号；
+     * 没有消费者在等待的时候置为Long.MIN_VALUE，生产者完全不用碰消费者的锁。
+     */
+    private volatile long wakeupDeadline = Long.MIN_VALUE;
+
+    /**
+     * 正在available上等待的消费者数量，只在持有消费者锁的时候读写
+     */
+    private int waiting;
+
+    /**
+     * 分片数取不小于CPU核数的2的幂
+     */
+    public StripedDelayQueue() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param concurrency 预计的并发生产者数量，分片数取不小于它的2的幂
+     */
+    @SuppressWarnings("unchecked")
+    public StripedDelayQueue(int concurrency) {
+        if (concurrency <= 0)
+            throw new IllegalArgumentException();
+        int n = 1;
+        while (n < concurrency && n < (1 << 16))
+            n <<= 1;
+        this.shards = (Shard<E>[]) new Shard<?>[n];
+        for (int i = 0; i < n; i++)
+            shards[i] = new Shard<E>();
+        this.mask = n - 1;
+    }
+
+    /**
+     * 把剩余的延迟换算成绝对时间，溢出时取Long.MAX_VALUE - 1（MAX_VALUE用来表示空）
+     */
+    static long deadlineOf(long delay) {
+        long now = System.nanoTime();
+        long deadline = now + delay;
+        if (delay > 0 && deadline < now)
+            return Long.MAX_VALUE - 1;
+        return deadline;
+    }
+
+    /**
+     * 当前线程对应的分片
+     */
+    private Shard<E> shardForCurrentThread() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return shards[(h ^ (h >>> 16)) & mask];
+    }
+
+    /**
+     * 找到堆顶最早到期的分片，全部为空时返回null。不加任何锁。
+     */
+    private Shard<E> earliestShard() {
+        Shard<E> best = null;
+        long min = Long.MAX_VALUE;
+        for (Shard<E> s : shards) {
+            long d = s.headDeadline;
+            if (d < min) {
+                min = d;
+                best = s;
+            }
+        }
+        return best;
+    }
+
+    private void await() throws InterruptedException {
+        waiting++;
+        try {
+            available.await();
+        } finally {
+            waiting--;
+        }
+    }
+
+    private long awaitNanos(long nanos) throws InterruptedException {
+        waiting++;
+        try {
+            return available.awaitNanos(nanos);
+        } finally {
+            waiting--;
+        }
+    }
+
+    /**
+     * 消费者离开之前调用：还有元素就叫醒一个follower，没有人在等了就告诉生产者不用再来叫。
+     * Call only when holding lock.
+     */
+    private void leave() {
+        if (leader == null && hasAny())
+            available.signal();
+        if (waiting == 0)
+            wakeupDeadline = Long.MIN_VALUE;
+    }
+
+    private boolean hasAny() {
+        for (Shard<E> s : shards)
+            if (s.headDeadline != Long.MAX_VALUE)
+                return true;
+        return false;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        long deadline = deadlineOf(e.getDelay(NANOSECONDS));
+        Shard<E> s = shardForCurrentThread();
+        final ReentrantLock shardLock = s.lock;
+        shardLock.lock();
+        try {
+            s.q.offer(e);
+            if (s.q.peek() == e)
+                s.headDeadline = deadline;
+        } finally {
+            shardLock.unlock();
+        }
+        //只有比leader正在等的时间点更早，才需要去拿消费者的锁
+        if (deadline < wakeupDeadline) {
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                leader = null;
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void put(E e) {
+        offer(e);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) {
+        return offer(e);
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            for (;;) {
+                if (leader == null)
+                    wakeupDeadline = Long.MAX_VALUE;
+                Shard<E> s = earliestShard();
+                if (s == null) {
+                    await();
+                    continue;
+                }
+                long deadline = s.headDeadline;
+                long delay = deadline - System.nanoTime();
+                if (delay <= 0) {
+                    E first = s.pollExpired();
+                    if (first != null)
+                        return first;
+                    continue;//被别的消费者抢先了，或者堆顶变了，重新扫描
+                }
+                if (leader != null)
+                    await();
+                else {
+                    Thread thisThread = Thread.currentThread();
+                    leader = thisThread;
+                    wakeupDeadline = deadline;
+                    try {
+                        awaitNanos(delay);
+                    } finally {
+                        if (leader == thisThread)
+                            leader = null;
+                    }
+                }
+            }
+        } finally {
+            leave();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            for (;;) {
+                if (leader == null)
+                    wakeupDeadline = Long.MAX_VALUE;
+                Shard<E> s = earliestShard();
+                if (s == null) {
+                    if (nanos <= 0)
+                        return null;
+                    nanos = awaitNanos(nanos);
+                    continue;
+                }
+                long deadline = s.headDeadline;
+                long delay = deadline - System.nanoTime();
+                if (delay <= 0) {
+                    E first = s.pollExpired();
+                    if (first != null)
+                        return first;
+                    continue;
+                }
+                if (nanos <= 0)
+                    return null;
+                if (nanos < delay || leader != null)
+                    nanos = awaitNanos(nanos);
+                else {
+                    Thread thisThread = Thread.currentThread();
+                    leader = thisThread;
+                    wakeupDeadline = deadline;
+                    try {
+                        long timeLeft = awaitNanos(delay);
+                        nanos -= delay - timeLeft;
+                    } finally {
+                        if (leader == thisThread)
+                            leader = null;
+                    }
+                }
+            }
+        } finally {
+            leave();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 只返回已经到期的元素，没有到期的返回null
+     */
+    @Override
+    public E poll() {
+        for (;;) {
+            Shard<E> s = earliestShard();
+            if (s == null || s.headDeadline - System.nanoTime() > 0)
+                return null;
+            E first = s.pollExpired();
+            if (first != null)
+                return first;
+        }
+    }
+
+    /**
+     * 返回最早到期的元素（不一定已经到期），队列为空时返回null
+     */
+    @Override
+    public E peek() {
+        Shard<E> s = earliestShard();
+        if (s == null)
+            return null;
+        final ReentrantLock shardLock = s.lock;
+        shardLock.lock();
+        try {
+            return s.q.peek();
+        } finally {
+            shardLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        for (Shard<E> s : shards) {
+            final ReentrantLock shardLock = s.lock;
+            shardLock.lock();
+            try {
+                E head = s.q.peek();
+                if (s.q.remove(o)) {
+                    if (head == o)
+                        s.updateHead();
+                    return true;
+                }
+            } finally {
+                shardLock.unlock();
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        int n = 0;
+        for (Shard<E> s : shards) {
+            final ReentrantLock shardLock = s.lock;
+            shardLock.lock();
+            try {
+                n += s.q.size();
+            } finally {
+                shardLock.unlock();
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 逐个分片取走已经到期的元素，每个分片只拿一次锁。分片之间不保证按到期时间排序。
+     */
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        int n = 0;
+        for (Shard<E> s : shards) {
+            if (n >= maxElements)
+                break;
+            if (s.headDeadline - System.nanoTime() > 0)
+                continue;
+            final ReentrantLock shardLock = s.lock;
+            shardLock.lock();
+            try {
+                E first;
+                boolean changed = false;
+                while (n < maxElements && (first = s.q.peek()) != null
+                        && first.getDelay(NANOSECONDS) <= 0) {
+                    c.add(first);   // In this order, in case add() throws.
+                    s.q.poll();
+                    changed = true;
+                    ++n;
+                }
+                if (changed)
+                    s.updateHead();
+            } finally {
+                shardLock.unlock();
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public void clear() {
+        for (Shard<E> s : shards) {
+            final ReentrantLock shardLock = s.lock;
+            shardLock.lock();
+            try {
+                s.q.clear();
+                s.updateHead();
+            } finally {
+                shardLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public Object[] toArray() {
+        List<Object> all = new ArrayList<Object>();
+        for (Shard<E> s : shards) {
+            final ReentrantLock shardLock = s.lock;
+            shardLock.lock();
+            try {
+                all.addAll(s.q);
+            } finally {
+                shardLock.unlock();
+            }
+        }
+        return all.toArray();
+    }
+
+    /**
+     * 逐个分片拍快照的迭代器，不保证顺序
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Itr(toArray());
+    }
+
+    private class Itr implements Iterator<E> {
+        final Object[] array;
+        int cursor = 0;
+        int lastRet = -1;
+
+        Itr(Object[] array) {
+            this.array = array;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor < array.length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (cursor >= array.length)
+                throw new NoSuchElementException();
+            lastRet = cursor;
+            return (E) array[cursor++];
+        }
+
+        @Override
+        public void remove() {
+            if (lastRet < 0)
+                throw new IllegalStateException();
+            StripedDelayQueue.this.remove(array[lastRet]);
+            lastRet = -1;
+        }
+    }
+}
@@ -10,11 +10,11 @@ import java.util.concurrent.atomic.AtomicLong;
  * [队列中要执行的任务]
  * </p>
  */
-public class Task<T extends Runnable> implements Delayed {//实现Delayed接口
+public class Task<T extends Runnable> implements Delayed, Runnable {//实现Delayed接口
     /**
-     * 到期时间
+     * 到期时间。周期任务每执行一次就改成下一次的到期时间，只在任务不在队列里的时候修改
      */
-    private final long time;
+    private long time;
 
     /**
      * 问题对象
@@ -24,12 +24,136 @@ public class Task<T extends Runnable> implements Delayed {//实现Delayed接口
 
     private final long n;
 
+    /**
+     * 任务在CDelayQueue的堆中的下标，不在堆里时为-1。
+     * 有了它取消任务就不用遍历整个队列，可以直接从这个位置删除，O(log n)。
+     */
+    int heapIndex = -1;
+
+    /**
+     * 任务在TaskJournal里的id，没有记日志的任务为-1
+     */
+    long journalId = -1;
+
+    /**
+     * 允许晚触发多久（纳秒），为-1时使用队列的设置，参见CDelayQueue#setSlack
+     */
+    private final long slack;
+
+    /**
+     * 周期（纳秒），和ScheduledThreadPoolExecutor一样：
+     * 正数表示固定频率，负数表示固定延迟，0表示只执行一次
+     */
+    private final long period;
+
+    private final CatchUp catchUp;
+
+    /**
+     * 周期任务被取消以后不再放回队列
+     */
+    volatile boolean cancelled;
+
+    /**
+     * 周期任务的执行体，由TaskQueueDaemonThread在创建任务时生成一次，之后每个周期都复用它，不再分配对象
+     */
+    Runnable runner;
+
+    /**
+     * 开了统计的时候，分发线程在交给线程池之前设置：run开始的时候往里面记交接延迟和触发延迟。没开统计时为null
+     */
+    DelaySchedulerMetrics metrics;
+
+    /**
+     * 交给线程池的时间（System.nanoTime），只在metrics不为null时有意义
+     */
+    long submitTime;
+
+    /**
+     * 固定频率的任务错过了若干个周期（比如线程池满了、GC停顿）以后怎么追
+     */
+    public enum CatchUp {
+        /**
+         * 把错过的周期一个接一个补上，和ScheduledThreadPoolExecutor.scheduleAtFixedRate一样
+         */
+        BURST,
+        /**
+         * 错过的周期直接丢掉，下一次对齐到最近的一个还没到的周期点上
+         */
+        SKIP
+    }
+
     public Task(long timeout, T t) {
+        this(timeout, t, -1);
+    }
+
+    /**
+     * @param timeout 延迟（纳秒）
+     * @param t 任务
+     * @param slack 允许晚触发多久（纳秒），-1表示使用队列的设置
+     */
+    public Task(long timeout, T t, long slack) {
+        this(timeout, t, slack, 0, CatchUp.BURST);
+    }
+
+    /**
+     * 周期任务
+     * @param timeout 第一次执行的延迟（纳秒）
+     * @param t 任务
+     * @param slack 允许晚触发多久（纳秒），-1表示使用队列的设置
+     * @param period 周期（纳秒），正数表示固定频率，负数表示固定延迟，0表示只执行一次
+     * @param catchUp 固定频率的任务错过周期以后怎么追
+     */
+    public Task(long timeout, T t, long slack, long period, CatchUp catchUp) {
+        if (slack < -1 || period == Long.MIN_VALUE)
+            throw new IllegalArgumentException();
+        if (catchUp == null)
+            throw new NullPointerException();
         this.time = System.nanoTime() + timeout;
         this.task = t;
+        this.slack = slack;
+        this.period = period;
+        this.catchUp = catchUp;
         this.n = atomic.getAndIncrement();
     }
 
+    /**
+     * 修改到期时间。任务在延迟队列里的时候只能由队列在持有锁的时候调用，改完以后要重新调整它在队列里的位置，
+     * 参见CDelayQueue#reschedule
+     * @param deadline 新的到期时间（System.nanoTime）
+     */
+    void setDeadline(long deadline) {
+        this.time = deadline;
+    }
+
+    public boolean isPeriodic() {
+        return period != 0;
+    }
+
+    public long getPeriod() {
+        return period;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 算出周期任务下一次的到期时间，在任务执行完、放回队列之前调用。
+     * 固定频率按上一次计划的到期时间往后推，执行本身的耗时和触发的延迟不会累积成漂移；
+     * 固定延迟从这次执行结束的时间往后推。
+     * @param now 执行结束的时间（System.nanoTime）
+     */
+    void setNextRunTime(long now) {
+        if (period < 0) {
+            time = now - period;
+        } else {
+            long next = time + period;
+            if (catchUp == CatchUp.SKIP && next - now <= 0)
+                next += ((now - next) / period + 1) * period;
+            time = next;
+        }
+    }
+
     /**
      * 返回与此对象相关的剩余延迟时间，以给定的时间单位表示
      *
@@ -37,7 +161,8 @@ public class Task<T extends Runnable> implements Delayed {//实现Delayed接口
      */
     @Override
     public long getDelay(TimeUnit unit) {
-        return unit.convert(this.time - System.nanoTime(), TimeUnit.NANOSECONDS);
+        long nanos = this.time - System.nanoTime();
+        return unit == TimeUnit.NANOSECONDS ? nanos : unit.convert(nanos, TimeUnit.NANOSECONDS);
     }
 
     /**
@@ -62,25 +187,41 @@ public class Task<T extends Runnable> implements Delayed {//实现Delayed接口
             else
                 return 1;
         }
-        long d = (getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS));
+        //只比较到期时间，对方是默认实现的话读一次时钟
+        long d = time - other.getDeadline();
         return (d == 0) ? 0 : ((d < 0) ? -1 : 1);
     }
 
-    public T getTask() {
-        return this.task;
-    }
-
+    /**
+     * 到期时间（System.nanoTime），不读时钟
+     */
     @Override
-    public int hashCode() {
-        return task.hashCode();
+    public long getDeadline() {
+        return this.time;
     }
 
+    /**
+     * 到期以后由线程池调用：开了统计的话先记交接延迟和触发延迟，再执行周期任务的执行体或者任务本身。
+     * 单个任务直接把Task交给线程池，统计不用再包一层
+     */
     @Override
-    public boolean equals(Object object) {
-        if (object instanceof Task) {
-            return object.hashCode() == hashCode() ? true : false;
+    public void run() {
+        DelaySchedulerMetrics metrics = this.metrics;
+        if (metrics != null) {
+            long now = System.nanoTime();
+            metrics.handoffLatency.record(now - submitTime);
+            metrics.firingLateness.record(now - time);
         }
-        return false;
+        Runnable runner = this.runner;
+        (runner != null ? runner : task).run();
+    }
+
+    public T getTask() {
+        return this.task;
+    }
+
+    public long getSlack() {
+        return this.slack;
     }
 
 
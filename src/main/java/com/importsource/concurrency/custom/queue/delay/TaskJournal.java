@@ -0,0 +1,473 @@
+package com.importsource.concurrency.custom.queue.delay;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * [任务调度系统]
+ * <br>
+ * [延迟任务的持久化日志]
+ * </p>
+ *
+ * 所有待执行的任务都在堆上，一重启就全丢了。这个类把"放入任务"和"删除任务"（取消或者已经交给线程池执行）
+ * 都追加写到一组内存映射的日志段（segment）里，重启的时候把日志读一遍就能把没执行的任务原样恢复出来。
+ *
+ * 1.写：每个段是一个预先分配好大小的文件，整个映射进内存，追加一条记录就是往MappedByteBuffer里put几个字节，
+ *   不需要系统调用；当前段写满了就换一个新段（segment roll）。
+ * 2.读：恢复的时候按顺序把每个段映射进来顺序解析，同样没有逐条记录的系统调用，几百万条记录几秒就能读完。
+ * 3.压缩：已经写满的旧段里大部分记录都已经失效了（任务被取消或者已经执行），后台线程定期把旧段中还活着的任务
+ *   重写进一个新文件，用原子rename替换掉最后一个旧段，再删除其它旧段。新文件头里记着它覆盖了从哪个段开始的
+ *   所有段，所以在rename之后、删除之前宕机也不会把已经删除的任务恢复出来。
+ *
+ * 记录格式：
+ *   段头：int魔数、int版本、long覆盖的起始段号
+ *   SCHEDULE：byte类型、long id、long到期时间（毫秒时间戳）、int长度、任务内容
+ *   REMOVE：byte类型、long id
+ *   类型为0表示后面没有记录了。类型字节最后写，写到一半的记录不会被当成有效记录。
+ *
+ * 任务内容由{@link Codec}负责和Runnable互相转换，默认使用Java序列化。
+ * 日志记的是墙上时间（System.currentTimeMillis），重启以后剩余的延迟按当前时间重新计算，已经过了时间的任务会立即到期。
+ * 任务在交给线程池的时候就记为删除，所以执行到一半宕机的任务不会被重新执行（至多一次）。
+ */
+public class TaskJournal {
+
+    /**
+     * 任务内容和字节之间的转换
+     */
+    public interface Codec {
+        byte[] encode(Runnable task) throws IOException;
+
+        Runnable decode(byte[] data) throws IOException;
+    }
+
+    /**
+     * 使用Java序列化，任务必须实现Serializable
+     */
+    public static final Codec SERIALIZATION = new Codec() {
+        @Override
+        public byte[] encode(Runnable task) throws IOException {
+            if (!(task instanceof Serializable))
+                throw new IOException("task is not serializable: " + task.getClass().getName());
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(task);
+            }
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public Runnable decode(byte[] data) throws IOException {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+                return (Runnable) in.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+    };
+
+    private static final int MAGIC = 0x544A524E; // "TJRN"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+
+    private static final byte SCHEDULE = 1;
+
+    private static final byte REMOVE = 2;
+
+    private static final int SCHEDULE_OVERHEAD = 1 + 8 + 8 + 4;
+
+    private static final int REMOVE_SIZE = 1 + 8;
+
+    private static final String SUFFIX = ".journal";
+
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    /**
+     * 默认每个段64MB
+     */
+    private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final File dir;
+
+    private final Codec codec;
+
+    private final int segmentSize;
+
+    /**
+     * 当前正在写的段
+     */
+    private MappedByteBuffer active;
+
+    private long activeSeq = -1;
+
+    /**
+     * 下一个段的段号
+     */
+    private long nextSeq;
+
+    /**
+     * 下一个任务的id
+     */
+    private long nextId;
+
+    /**
+     * 还没有被删除的任务id，压缩的时候用来判断一条SCHEDULE记录是否还活着
+     */
+    private final Set<Long> live = ConcurrentHashMap.newKeySet();
+
+    private boolean recovered;
+
+    private ScheduledExecutorService compactor;
+
+    public TaskJournal(File dir, Codec codec) throws IOException {
+        this(dir, codec, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param dir 日志目录，不存在会自动创建
+     * @param codec 任务内容的编解码
+     * @param segmentSize 每个段的字节数，单条记录不能超过它
+     */
+    public TaskJournal(File dir, Codec codec, int segmentSize) throws IOException {
+        if (segmentSize <= HEADER_SIZE + SCHEDULE_OVERHEAD)
+            throw new IllegalArgumentException("segment too small");
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+        this.dir = dir;
+        this.codec = codec;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * 读取目录里所有的段，返回还没有被删除的任务，任务的剩余延迟按当前时间重新计算。
+     * 必须在第一次写日志之前调用，而且只能调用一次。
+     */
+    public synchronized List<Task> recover() throws IOException {
+        if (recovered || active != null)
+            throw new IllegalStateException("recover must be called once, before any append");
+        recovered = true;
+        File[] tmp = dir.listFiles((d, name) -> name.endsWith(COMPACT_SUFFIX));
+        if (tmp != null)
+            for (File f : tmp)
+                Files.deleteIfExists(f.toPath());//压缩到一半的临时文件
+
+        TreeMap<Long, File> segments = listSegments();
+        //压缩过的段会覆盖它之前的若干个段，这些段如果还在（压缩完没来得及删），直接删掉
+        Set<Long> obsolete = new HashSet<>();
+        for (Map.Entry<Long, File> e : segments.entrySet()) {
+            long coveredFrom = readCoveredFrom(e.getValue());
+            if (coveredFrom >= 0)
+                obsolete.addAll(segments.subMap(coveredFrom, e.getKey()).keySet());
+        }
+        for (Long seq : obsolete)
+            Files.deleteIfExists(segments.remove(seq).toPath());
+
+        Map<Long, byte[]> payloads = new LinkedHashMap<>();
+        Map<Long, Long> deadlines = new LinkedHashMap<>();
+        long maxId = -1;
+        for (Map.Entry<Long, File> e : segments.entrySet()) {
+            ByteBuffer buf = map(e.getValue(), FileChannel.MapMode.READ_ONLY);
+            buf.position(HEADER_SIZE);
+            while (buf.remaining() >= REMOVE_SIZE) {
+                byte type = buf.get();
+                if (type == SCHEDULE) {
+                    long id = buf.getLong();
+                    long deadline = buf.getLong();
+                    byte[] data = new byte[buf.getInt()];
+                    buf.get(data);
+                    payloads.put(id, data);
+                    deadlines.put(id, deadline);
+                    maxId = Math.max(maxId, id);
+                } else if (type == REMOVE) {
+                    long id = buf.getLong();
+                    payloads.remove(id);
+                    deadlines.remove(id);
+                    maxId = Math.max(maxId, id);
+                } else {
+                    break;
+                }
+            }
+            nextSeq = e.getKey() + 1;
+        }
+        nextId = maxId + 1;
+
+        long now = System.currentTimeMillis();
+        List<Task> tasks = new ArrayList<>(payloads.size());
+        for (Map.Entry<Long, byte[]> e : payloads.entrySet()) {
+            long id = e.getKey();
+            long remaining = TimeUnit.MILLISECONDS.toNanos(deadlines.get(id) - now);
+            Task<Runnable> task = new Task<>(remaining, codec.decode(e.getValue()));
+            task.journalId = id;
+            tasks.add(task);
+            live.add(id);
+        }
+        return tasks;
+    }
+
+    /**
+     * 记录一个新任务
+     * @param task 任务
+     * @param deadlineMillis 到期的墙上时间
+     */
+    public synchronized void appendSchedule(Task<?> task, long deadlineMillis) {
+        byte[] data;
+        try {
+            data = codec.encode(task.getTask());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int size = SCHEDULE_OVERHEAD + data.length;
+        if (size > segmentSize - HEADER_SIZE)
+            throw new IllegalArgumentException("task too large for journal segment: " + data.length);
+        MappedByteBuffer buf = reserve(size);
+        long id = nextId++;
+        int start = buf.position();
+        buf.position(start + 1);
+        buf.putLong(id);
+        buf.putLong(deadlineMillis);
+        buf.putInt(data.length);
+        buf.put(data);
+        buf.put(start, SCHEDULE);
+        task.journalId = id;
+        live.add(id);
+    }
+
+    /**
+     * 记录一个任务被删除了（取消或者已经交给线程池），没有记录过的任务直接忽略
+     */
+    public synchronized void appendRemove(Task<?> task) {
+        long id = task.journalId;
+        if (id < 0 || !live.remove(id))
+            return;
+        MappedByteBuffer buf = reserve(REMOVE_SIZE);
+        int start = buf.position();
+        buf.position(start + 1);
+        buf.putLong(id);
+        buf.put(start, REMOVE);
+    }
+
+    /**
+     * 一批任务一起记为删除，只加一次锁
+     */
+    public synchronized void appendRemoveAll(Collection<? extends Task> tasks) {
+        for (Task<?> task : tasks)
+            appendRemove(task);
+    }
+
+    /**
+     * 把当前段写回磁盘。不调用的话由操作系统决定什么时候写回，进程崩溃不会丢数据，机器掉电可能会丢最近的记录。
+     */
+    public synchronized void force() {
+        if (active != null)
+            active.force();
+    }
+
+    /**
+     * 保证当前段还能写下size个字节，写不下就换一个新段。Call only when holding lock.
+     */
+    private MappedByteBuffer reserve(int size) {
+        if (!recovered)
+            throw new IllegalStateException("recover must be called before appending");
+        if (active == null || active.remaining() < size) {
+            try {
+                roll();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return active;
+    }
+
+    private void roll() throws IOException {
+        long seq = nextSeq++;
+        File f = segmentFile(seq);
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(segmentSize);
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            buf.putInt(MAGIC);
+            buf.putInt(VERSION);
+            buf.putLong(-1);
+            active = buf;
+            activeSeq = seq;
+        }
+    }
+
+    /**
+     * 启动后台压缩线程
+     */
+    public synchronized void startCompaction(long period, TimeUnit unit) {
+        if (!recovered)
+            throw new IllegalStateException("recover must be called before compaction");
+        if (compactor != null)
+            return;
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Task Journal Compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * 把所有已经写满的段里还活着的SCHEDULE记录重写进一个文件，替换掉这些段。
+     * 至少有两个写满的段时才做。不影响正在写的段，追加和压缩可以同时进行。
+     * 哪些记录还活着要靠recover建立的live集合来判断，所以必须在recover之后调用。
+     */
+    public void compact() throws IOException {
+        long upTo;
+        synchronized (this) {
+            if (!recovered)
+                throw new IllegalStateException("recover must be called before compaction");
+            upTo = activeSeq;
+        }
+        TreeMap<Long, File> closed = new TreeMap<>(listSegments().headMap(upTo < 0 ? Long.MAX_VALUE : upTo));
+        if (closed.size() < 2)
+            return;
+        long first = closed.firstKey();
+        long last = closed.lastKey();
+        File tmp = new File(dir, String.format("%019d", last) + COMPACT_SUFFIX);
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            FileChannel out = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(first).flip();
+            out.write(header);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(1 << 20);
+            for (File f : closed.values()) {
+                ByteBuffer buf = map(f, FileChannel.MapMode.READ_ONLY);
+                buf.position(HEADER_SIZE);
+                while (buf.remaining() >= REMOVE_SIZE) {
+                    int start = buf.position();
+                    byte type = buf.get();
+                    if (type == SCHEDULE) {
+                        long id = buf.getLong();
+                        buf.getLong();
+                        int len = buf.getInt();
+                        buf.position(buf.position() + len);
+                        if (!live.contains(id))
+                            continue;
+                        ByteBuffer record = buf.duplicate();
+                        record.position(start).limit(buf.position());
+                        if (chunk.remaining() < record.remaining()) {
+                            chunk.flip();
+                            while (chunk.hasRemaining())
+                                out.write(chunk);
+                            chunk.clear();
+                        }
+                        if (chunk.remaining() < record.remaining()) {
+                            while (record.hasRemaining())
+                                out.write(record);
+                        } else {
+                            chunk.put(record);
+                        }
+                    } else if (type == REMOVE) {
+                        buf.getLong();//REMOVE记录对应的SCHEDULE不会被带过去，它本身也就没用了
+                    } else {
+                        break;
+                    }
+                }
+            }
+            chunk.flip();
+            while (chunk.hasRemaining())
+                out.write(chunk);
+            out.force(true);
+        }
+        //rename之后这个文件就覆盖了[first, last]，之后再删其它的段，中间宕机恢复时也会把它们删掉
+        Files.move(tmp.toPath(), closed.get(last).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        for (Map.Entry<Long, File> e : closed.headMap(last).entrySet())
+            Files.deleteIfExists(e.getValue().toPath());
+    }
+
+    /**
+     * 停止后台压缩并把当前段写回磁盘
+     */
+    public synchronized void close() {
+        if (compactor != null)
+            compactor.shutdownNow();
+        force();
+    }
+
+    /**
+     * 日志里还活着的任务数
+     */
+    public int liveCount() {
+        return live.size();
+    }
+
+    private TreeMap<Long, File> listSegments() {
+        TreeMap<Long, File> segments = new TreeMap<>();
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                try {
+                    segments.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), f);
+                } catch (NumberFormatException ignore) {
+                }
+            }
+        }
+        return segments;
+    }
+
+    private File segmentFile(long seq) {
+        return new File(dir, String.format("%019d", seq) + SUFFIX);
+    }
+
+    /**
+     * 读段头里记的覆盖起始段号，不是压缩产生的段返回-1
+     */
+    private static long readCoveredFrom(File f) throws IOException {
+        ByteBuffer buf = map(f, FileChannel.MapMode.READ_ONLY);
+        if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC)
+            throw new IOException("not a task journal segment: " + f);
+        if (buf.getInt() != VERSION)
+            throw new IOException("unsupported journal version: " + f);
+        return buf.getLong();
+    }
+
+    private static MappedByteBuffer map(File f, FileChannel.MapMode mode) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw")) {
+            return raf.getChannel().map(mode, 0, raf.length());
+        }
+    }
+
+    /**
+     * 目录下所有段文件，按段号排序，用于观察
+     */
+    public List<File> segments() {
+        return Collections.unmodifiableList(new ArrayList<>(listSegments().values()));
+    }
+}
@@ -1,8 +1,19 @@
 package com.importsource.concurrency.custom.queue.delay;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * <p>
@@ -13,7 +24,74 @@ import java.util.concurrent.TimeUnit;
  */
 public class TaskQueueDaemonThread {
 
+    /**
+     * 默认实例：一个分发线程，20个线程的线程池
+     */
     private TaskQueueDaemonThread() {
+        this("Task Queue Daemon Thread", 1, POOL_SIZE);
+    }
+
+    /**
+     * 创建一个独立的调度器，使用CDelayQueue和固定大小的线程池
+     * @param name 名字，分发线程以它为前缀
+     * @param dispatchers 分发线程数
+     * @param poolSize 执行任务的线程池大小
+     */
+    public TaskQueueDaemonThread(String name, int dispatchers, int poolSize) {
+        this(name, new CDelayQueue<>(), dispatchers, Executors.newFixedThreadPool(poolSize), poolSize);
+        this.ownsExecutor = true;
+    }
+
+    /**
+     * 创建一个独立的调度器，使用有界的CDelayQueue和固定大小的线程池，队列满了以后按拒绝策略处理
+     * @param name 名字，分发线程以它为前缀
+     * @param dispatchers 分发线程数
+     * @param poolSize 执行任务的线程池大小
+     * @param capacity 延迟队列最多放多少个任务
+     * @param rejectionPolicy 队列满了以后put怎么办
+     */
+    public TaskQueueDaemonThread(String name, int dispatchers, int poolSize, int capacity,
+                                 RejectionPolicy rejectionPolicy) {
+        this(name, new CDelayQueue<>(capacity), dispatchers, Executors.newFixedThreadPool(poolSize), poolSize);
+        this.ownsExecutor = true;
+        setRejectionPolicy(rejectionPolicy);
+    }
+
+    /**
+     * 创建一个独立的调度器
+     * @param name 名字，分发线程以它为前缀
+     * @param queue 延迟队列
+     * @param dispatchers 分发线程数。多个分发线程一起调用queue.take()，由延迟队列里的Leader-Follower模式协调：
+     *                    一个leader等堆顶到期，其它的睡着，leader拿到任务后叫醒下一个去当leader，自己去分发
+     * @param executor 执行任务的线程池
+     * @param parallelism executor大约能同时执行多少个任务，一批到期的任务最多切成这么多份提交
+     */
+    public TaskQueueDaemonThread(String name, BlockingQueue<Task> queue, int dispatchers,
+                                 Executor executor, int parallelism) {
+        if (dispatchers <= 0 || parallelism <= 0)
+            throw new IllegalArgumentException();
+        if (name == null || queue == null || executor == null)
+            throw new NullPointerException();
+        this.name = name;
+        this.t = queue;
+        this.dispatchers = dispatchers;
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * 创建一个每个到期任务一个线程的调度器（JDK21以上是虚拟线程），适合阻塞I/O型的任务：
+     * 慢任务不会占住别的任务的线程，也不用再猜线程池的大小。
+     * @param name 名字
+     * @param dispatchers 分发线程数
+     * @param maxConcurrency 同时执行的任务数上限，小于等于0表示不限制
+     */
+    public static TaskQueueDaemonThread perTaskThreads(String name, int dispatchers, int maxConcurrency) {
+        TaskQueueDaemonThread daemon = new TaskQueueDaemonThread(name, new CDelayQueue<>(), dispatchers,
+                new VirtualThreadExecutor(name, maxConcurrency), 1);
+        daemon.ownsExecutor = true;
+        daemon.perTaskThreads = true;
+        return daemon;
     }
 
     private static class LazyHolder {
@@ -24,65 +102,451 @@ public class TaskQueueDaemonThread {
         return LazyHolder.taskQueueDaemonThread;
     }
 
-    protected Executor executor = Executors.newFixedThreadPool(20);
     /**
-     * 守护线程
+     * 默认的线程池大小
+     */
+    private static final int POOL_SIZE = 20;
+
+    /**
+     * 一次最多从延迟队列里取出多少个到期的任务
+     */
+    private static final int MAX_BATCH = 1024;
+
+    /**
+     * 线程池拒绝以后，分发线程歇多久再重试没交出去的任务
+     */
+    private static final long REJECT_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final String name;
+
+    private final int dispatchers;
+
+    /**
+     * executor的并行度，用于切分批次
+     */
+    private final int parallelism;
+
+    protected Executor executor;
+
+    /**
+     * executor是不是自己创建的，是的话shutdown的时候一起关掉
+     */
+    private boolean ownsExecutor;
+
+    /**
+     * executor是不是每个任务一个线程（perTaskThreads创建的），是的话一批任务不切分
+     */
+    private boolean perTaskThreads;
+
+    /**
+     * 分发线程（守护线程）
+     */
+    private Thread[] daemonThreads;
+
+    private volatile boolean shutdown;
+
+    /**
+     * 延迟队列满了以后put怎么办
+     */
+    public enum RejectionPolicy {
+        /**
+         * 一直等到队列有空位
+         */
+        BLOCK,
+        /**
+         * 抛出RejectedExecutionException
+         */
+        ABORT,
+        /**
+         * 丢掉这个任务，put返回null
+         */
+        DISCARD
+    }
+
+    private volatile RejectionPolicy rejectionPolicy = RejectionPolicy.BLOCK;
+
+    /**
+     * 调度指标，为null时不统计
      */
-    private Thread daemonThread;
+    private volatile DelaySchedulerMetrics metrics;
+
+    private ObjectName metricsName;
 
     /**
      * 初始化守护线程
      */
-    public void init() {
-        daemonThread = new Thread(() -> execute());
-        daemonThread.setDaemon(true);
-        daemonThread.setName("Task Queue Daemon Thread");
-        daemonThread.start();
+    public synchronized void init() {
+        if (daemonThreads != null)
+            throw new IllegalStateException(name + " already initialized");
+        daemonThreads = new Thread[dispatchers];
+        for (int i = 0; i < dispatchers; i++) {
+            Thread daemonThread = new Thread(() -> execute());
+            daemonThread.setDaemon(true);
+            daemonThread.setName(dispatchers == 1 ? name : name + "-" + i);
+            daemonThreads[i] = daemonThread;
+            daemonThread.start();
+        }
+    }
+
+    /**
+     * 停止分发线程，队列里剩下的任务不再执行。如果线程池是自己创建的，也一起关掉（已经交出去的任务会执行完）。
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (daemonThreads != null)
+            for (Thread daemonThread : daemonThreads)
+                daemonThread.interrupt();
+        if (ownsExecutor && executor instanceof ExecutorService)
+            ((ExecutorService) executor).shutdown();
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException ignore) {
+            }
+            metricsName = null;
+        }
+    }
+
+    /**
+     * 开始统计调度指标（任务触发的延迟、leader等待时长、批次大小、交给线程池的延迟、队列深度），
+     * 并以 com.importsource.concurrency:type=DelayScheduler,name=名字 注册成MBean。
+     * 不调用的话分发路径上没有任何统计的开销。换延迟队列的话要在init(queue)之后调用。
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized DelaySchedulerMetrics enableMetrics() {
+        if (metrics != null)
+            return metrics;
+        DelaySchedulerMetrics m = new DelaySchedulerMetrics(t);
+        try {
+            ObjectName objectName = new ObjectName("com.importsource.concurrency:type=DelayScheduler,name="
+                    + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(m, objectName);
+            metricsName = objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("cannot register metrics of " + name, e);
+        }
+        if (t instanceof CDelayQueue)
+            ((CDelayQueue<Task>) t).recordLeaderWaits(m.leaderWait);
+        metrics = m;
+        return m;
+    }
+
+    /**
+     * 设置延迟队列满了以后put怎么办，默认BLOCK。只对有界的队列有意义。
+     */
+    public void setRejectionPolicy(RejectionPolicy rejectionPolicy) {
+        if (rejectionPolicy == null)
+            throw new NullPointerException();
+        this.rejectionPolicy = rejectionPolicy;
+    }
+
+    /**
+     * 使用指定的延迟队列初始化守护线程，比如挂着大量定时任务的时候可以换成TimingWheelDelayQueue。
+     * 必须在put之前调用。
+     * @param queue 延迟队列
+     */
+    public void init(BlockingQueue<Task> queue) {
+        this.t = queue;
+        init();
+    }
+
+    /**
+     * 开启持久化：先从日志里恢复还没执行的任务，一次性批量放回延迟队列，
+     * 之后的put、endTask以及任务到期都会记到日志里。必须在put之前调用。
+     * @param journal 持久化日志
+     * @return 恢复出来的任务数
+     */
+    public int recover(TaskJournal journal) throws IOException {
+        List<Task> tasks = journal.recover();
+        t.addAll(tasks);
+        this.journal = journal;
+        return tasks.size();
     }
 
     private void execute() {
         System.out.println("start:" + System.currentTimeMillis());
-        while (true) {
+        List<Task> batch = new ArrayList<>();
+        while (!shutdown) {
             try {
-                //从延迟队列中取值,如果没有对象过期则队列一直等待，
-                Task t1 = t.take();
-                if (t1 != null) {
-                    //修改问题的状态
-                    Runnable task = t1.getTask();
-                    if (task == null) {
-                        continue;
-                    }
-                    executor.execute(task);
+                //上一批被线程池拒绝、还没交出去的任务留在batch里，先把它们交出去
+                if (batch.isEmpty()) {
+                    //从延迟队列中取值,如果没有对象过期则队列一直等待，
+                    Task t1 = t.take();
+                    //同一时刻到期的其它任务在一次加锁里一起取出来
+                    batch.add(t1);
+                    t.drainTo(batch, MAX_BATCH - 1);
+                    DelaySchedulerMetrics metrics = this.metrics;
+                    if (metrics != null)
+                        metrics.batchSize.record(batch.size());
                 }
+                dispatch(batch);
+            } catch (InterruptedException e) {
+                if (shutdown)
+                    break;
+            } catch (RejectedExecutionException e) {
+                //已经接受的任务不能丢：没交出去的还在batch里，歇一下等线程池腾出地方再交
+                e.printStackTrace();
+                LockSupport.parkNanos(REJECT_BACKOFF_NANOS);
             } catch (Exception e) {
+                //一个任务出错不能让分发线程退出，否则后面所有的任务都不会再执行了
                 e.printStackTrace();
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 把一批到期的任务交给线程池，交出去的任务从batch里删掉。
+     * 只有一个任务，或者每个任务一个线程的时候，一个任务提交一次；
+     * 多个任务的时候整批包成一个TaskBatch，提交min(parallelism, n)次，这些工作线程从同一个游标上一个一个地领任务，
+     * 一个慢任务只占住一个线程，后面的任务由别的空闲线程领走。几千个同时到期的任务也只需要几十次execute。
+     * 交出去以后才在日志里记删除；线程池拒绝的时候，没交出去的任务留在batch里，异常抛给分发循环，歇一下再交。
+     */
+    private void dispatch(List<Task> batch) {
+        DelaySchedulerMetrics metrics = this.metrics;
+        TaskJournal journal = this.journal;
+        int n = batch.size();
+        if (n == 1 || perTaskThreads) {
+            int i = 0;
+            try {
+                for (; i < n; i++) {
+                    Task k = batch.get(i);
+                    Runnable task = runnableOf(k);
+                    if (task != null) {
+                        if (metrics == null) {
+                            executor.execute(task);
+                        } else {
+                            //统计的时候直接交Task本身，由Task.run记延迟，不再为每个任务分配包装对象
+                            k.metrics = metrics;
+                            k.submitTime = System.nanoTime();
+                            executor.execute(k);
+                        }
+                    }
+                    if (journal != null)
+                        journal.appendRemove(k);
+                }
+            } finally {
+                batch.subList(0, i).clear();
+            }
+            return;
+        }
+        TaskBatch tasks = new TaskBatch(batch.toArray(new Task[n]), metrics);
+        //第一次提交成功以后，这个工作线程一定会把整批任务领完，剩下的提交只是为了并行
+        executor.execute(tasks);
+        if (journal != null)
+            journal.appendRemoveAll(batch);
+        batch.clear();
+        for (int i = 1, runners = Math.min(parallelism, n); i < runners; i++) {
+            try {
+                executor.execute(tasks);
+            } catch (RejectedExecutionException e) {
                 break;
             }
         }
     }
 
     /**
-     * 创建一个最初为空的新 DelayQueue
+     * 到期以后要交给线程池执行的东西：一次性任务就是它自己的Runnable，周期任务是它的Periodic
+     */
+    private static Runnable runnableOf(Task k) {
+        Runnable runner = k.runner;
+        return runner != null ? runner : k.getTask();
+    }
+
+    /**
+     * 周期任务的执行体，每个周期任务只创建一个。
+     * 执行完以后算出下一次的到期时间，把同一个Task放回延迟队列，稳定运行时不分配任何对象。
+     */
+    private class Periodic implements Runnable {
+        private final Task<Runnable> k;
+
+        Periodic(Task<Runnable> k) {
+            this.k = k;
+        }
+
+        @Override
+        public void run() {
+            if (k.cancelled)
+                return;
+            try {
+                k.getTask().run();
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+            if (k.cancelled || shutdown)
+                return;
+            k.setNextRunTime(System.nanoTime());
+            //已经接受的周期任务不能因为队列满了就丢掉，等空位
+            try {
+                t.put(k);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            //和endTask并发的时候，endTask可能在offer之前就删过了，这里再删一次
+            if (k.cancelled)
+                t.remove(k);
+        }
+    }
+
+    /**
+     * 一批到期的任务，可以提交给多个工作线程：每个线程从同一个游标上一个一个地领任务，领完就退出。
+     * 一个任务抛异常不影响后面的任务
+     */
+    private static class TaskBatch implements Runnable {
+        private final Task[] tasks;
+
+        /**
+         * 下一个要领的任务的下标
+         */
+        private final AtomicInteger cursor = new AtomicInteger();
+
+        private final DelaySchedulerMetrics metrics;
+
+        /**
+         * 交给线程池的时间
+         */
+        private final long submitTime;
+
+        TaskBatch(Task[] tasks, DelaySchedulerMetrics metrics) {
+            this.tasks = tasks;
+            this.metrics = metrics;
+            this.submitTime = metrics == null ? 0 : System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            if (metrics != null)
+                metrics.handoffLatency.record(System.nanoTime() - submitTime);
+            Task[] tasks = this.tasks;
+            for (int i; (i = cursor.getAndIncrement()) < tasks.length; ) {
+                Task t = tasks[i];
+                Runnable task = runnableOf(t);
+                if (task == null)
+                    continue;
+                if (metrics != null)
+                    metrics.firingLateness.record(System.nanoTime() - t.getDeadline());
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 延迟队列，默认是一个最初为空的新 CDelayQueue
+     */
+    private BlockingQueue<Task> t;
+
+    /**
+     * 持久化日志，为null时不做持久化。recover可能在分发线程启动以后才调用，所以是volatile
      */
-    private CDelayQueue<Task> t = new CDelayQueue<>();
+    private volatile TaskJournal journal;
 
     /**
      * 添加任务，
      * time 延迟时间
      * task 任务
      * 用户为问题设置延迟时间
+     * 返回放进队列的Task，用于endTask取消或者reschedule改期；
+     * 有界队列满了并且拒绝策略是DISCARD，或者等待的时候被中断，返回null
+     */
+    public Task<Runnable> put(long time, Runnable task) {
+        return put(time, task, -1);
+    }
+
+    /**
+     * 添加任务，并允许它最多晚slack毫秒触发。
+     * 队列可以把这个窗口里到期的任务合并到一次唤醒里，定时任务很密的时候能少很多次唤醒。
+     * 只有CDelayQueue会用到slack，其它队列按到期时间触发。slack为-1表示使用队列的设置。
+     * @return 放进队列的Task，没有放进去返回null，参见put(long, Runnable)
+     */
+    public Task<Runnable> put(long time, Runnable task, long slack) {
+        Task<Runnable> k = new Task<>(TimeUnit.MILLISECONDS.toNanos(time), task,
+                slack == -1 ? -1 : TimeUnit.MILLISECONDS.toNanos(slack));
+        if (journal != null)
+            journal.appendSchedule(k, System.currentTimeMillis() + time);
+        return enqueue(k) ? k : null;
+    }
+
+    /**
+     * 按拒绝策略把任务放进延迟队列，没放进去的话把日志里的记录也删掉
+     * @return 是否放进去了
      */
-    public void put(long time, Runnable task) {
-        //转换成ns
-        long nanoTime = TimeUnit.NANOSECONDS.convert(time, TimeUnit.MILLISECONDS);
-        //创建一个任务
-        Task k = new Task(nanoTime, task);
-        //将任务放在延迟的队列中
+    private boolean enqueue(Task k) {
+        boolean added = false;
         try {
-            t.put(k);
+            switch (rejectionPolicy) {
+                case BLOCK:
+                    t.put(k);
+                    added = true;
+                    break;
+                case ABORT:
+                    if (!t.offer(k))
+                        throw new RejectedExecutionException("delay queue of " + name + " is full");
+                    added = true;
+                    break;
+                default:
+                    added = t.offer(k);
+            }
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!added && journal != null)
+                journal.appendRemove(k);
         }
+        return added;
+    }
+
+    /**
+     * 添加固定频率的周期任务：第n次的到期时间是 initialDelay + n * period，执行的耗时不会累积成漂移。
+     * 错过的周期一个接一个补上。周期任务不记持久化日志。
+     * @param initialDelay 第一次执行的延迟（毫秒）
+     * @param period 周期（毫秒）
+     * @return 用于endTask取消
+     * @throws RejectedExecutionException 没有放进延迟队列，参见schedulePeriodic
+     */
+    public Task<Runnable> scheduleAtFixedRate(long initialDelay, long period, Runnable task) {
+        return scheduleAtFixedRate(initialDelay, period, task, Task.CatchUp.BURST);
+    }
+
+    /**
+     * 添加固定频率的周期任务
+     * @param catchUp 错过周期以后怎么追：BURST一个接一个补上，SKIP丢掉错过的周期
+     */
+    public Task<Runnable> scheduleAtFixedRate(long initialDelay, long period, Runnable task, Task.CatchUp catchUp) {
+        if (period <= 0)
+            throw new IllegalArgumentException();
+        return schedulePeriodic(initialDelay, TimeUnit.MILLISECONDS.toNanos(period), task, catchUp);
+    }
+
+    /**
+     * 添加固定延迟的周期任务：每次执行结束以后再等delay毫秒执行下一次。周期任务不记持久化日志。
+     * @param initialDelay 第一次执行的延迟（毫秒）
+     * @param delay 两次执行之间的间隔（毫秒）
+     * @return 用于endTask取消
+     * @throws RejectedExecutionException 没有放进延迟队列，参见schedulePeriodic
+     */
+    public Task<Runnable> scheduleWithFixedDelay(long initialDelay, long delay, Runnable task) {
+        if (delay <= 0)
+            throw new IllegalArgumentException();
+        return schedulePeriodic(initialDelay, -TimeUnit.MILLISECONDS.toNanos(delay), task, Task.CatchUp.BURST);
+    }
+
+    /**
+     * 周期任务没有放进队列（有界队列满了并且拒绝策略是DISCARD，或者等待的时候被中断）时，返回的Task永远不会执行，
+     * 所以不管拒绝策略是什么都抛出RejectedExecutionException
+     */
+    private Task<Runnable> schedulePeriodic(long initialDelay, long period, Runnable task, Task.CatchUp catchUp) {
+        if (task == null)
+            throw new NullPointerException();
+        Task<Runnable> k = new Task<>(TimeUnit.MILLISECONDS.toNanos(initialDelay), task, -1, period, catchUp);
+        k.runner = new Periodic(k);
+        if (!enqueue(k))
+            throw new RejectedExecutionException("periodic task not accepted by delay queue of " + name);
+        return k;
     }
 
     public void start(){
@@ -95,10 +559,56 @@ public class TaskQueueDaemonThread {
     }
 
     /**
-     * 结束订单
-     * @param task
+     * 把任务的到期时间改成从现在开始time毫秒以后，比如连接每来一个请求就把空闲超时往后推。
+     * CDelayQueue在堆里原地上浮或下沉，TimingWheelDelayQueue把节点挂到新的槽上，都只加一次锁、不分配对象；
+     * 其它队列退化成先删除再放回去，放回去的时候不会因为中断丢掉任务。
+     * @param task put或者scheduleAtFixedRate/scheduleWithFixedDelay返回的Task
+     * @return 任务已经到期被取走或者被取消了返回false
+     */
+    @SuppressWarnings("unchecked")
+    public boolean reschedule(Task<Runnable> task, long time) {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(time);
+        boolean moved;
+        if (t instanceof CDelayQueue) {
+            moved = ((CDelayQueue<Task>) t).reschedule(task, nanos, TimeUnit.NANOSECONDS);
+        } else if (t instanceof TimingWheelDelayQueue) {
+            moved = ((TimingWheelDelayQueue<Task>) t).reschedule(task, nanos, TimeUnit.NANOSECONDS);
+        } else {
+            moved = t.remove(task);
+            if (moved) {
+                task.setDeadline(System.nanoTime() + nanos);
+                //刚删掉一个，一般都放得回去；有界队列被别人抢先放满了就等空位，被中断也要先放回去再恢复中断状态
+                boolean interrupted = false;
+                while (!t.offer(task)) {
+                    try {
+                        t.put(task);
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+        if (moved && journal != null && task.journalId >= 0) {
+            journal.appendRemove(task);
+            journal.appendSchedule(task, System.currentTimeMillis() + time);
+        }
+        return moved;
+    }
+
+    /**
+     * 结束订单：取消一个还没到期的任务，一次性任务和周期任务都可以
+     * @param task put或者scheduleAtFixedRate/scheduleWithFixedDelay返回的Task
+     * @return 任务还在队列里并且被删除了返回true
      */
     public boolean endTask(Task<Runnable> task){
-        return t.remove(task);
+        if (task.isPeriodic())
+            task.cancelled = true;
+        boolean removed = t.remove(task);
+        if (removed && journal != null)
+            journal.appendRemove(task);
+        return removed;
     }
 }
\ No newline at end of file
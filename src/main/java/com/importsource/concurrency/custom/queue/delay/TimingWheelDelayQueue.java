@@ -0,0 +1,671 @@
+package com.importsource.concurrency.custom.queue.delay;
+
+import java.util.AbstractQueue;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * 分层时间轮实现的延时队列
+ *
+ * CDelayQueue用PriorityQueue装载任务，每次offer/take/remove都是O(log n)甚至O(n)，而且都在同一把锁里做。
+ * 当挂着几十万个定时任务的时候，插入的耗时会随着队列的深度一起涨上去。
+ *
+ * 时间轮的思路是：
+ * 1.把时间切成一格一格的tick（可配置），每一层轮子有64个槽，一个槽就是一个双向链表。
+ * 2.第0层的一个槽代表1个tick，第1层的一个槽代表64个tick，第2层代表64*64个tick，依此类推。
+ *   到期时间离现在越远，就放到越高的那一层（溢出轮），高层的轮子用到的时候才创建。
+ * 3.插入只需要算出层号和槽号，然后挂到链表尾部；取消只需要把节点从链表上摘掉，都是O(1)。
+ * 4.时间往前推进的时候，高层的槽到点了就把里面的任务重新分配到低层（降级），第0层的槽到点了就说明里面的任务过期了。
+ * 5.每一层用一个long做占用位图，找下一个非空的槽只需要一次numberOfTrailingZeros，所以空闲的时候可以直接跳过去，
+ *   不用一格一格地走。
+ *
+ * 代价是精度：任务最多会晚一个tick被取出（绝不会提前），同一个tick内到期的任务之间不保证先后顺序。
+ *
+ * take的实现和CDelayQueue一样使用Leader-Follower模式。
+ */
+public class TimingWheelDelayQueue<E extends Delayed> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    /**
+     * 每层轮子的槽数为2^6=64，刚好可以用一个long做占用位图
+     */
+    private static final int WHEEL_BITS = 6;
+
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    /**
+     * 64位的tick最多需要的层数
+     */
+    private static final int MAX_LEVELS = (Long.SIZE + WHEEL_BITS - 1) / WHEEL_BITS;
+
+    /**
+     * 链表节点的level取这个值的时候，表示节点已经到期，挂在ready链表上
+     */
+    private static final int READY = -1;
+
+    private final transient ReentrantLock lock = new ReentrantLock();
+
+    private final Condition available = lock.newCondition();
+
+    /**
+     * 一个tick的纳秒数
+     */
+    private final long tickNanos;
+
+    /**
+     * 时间原点，tick都是相对于它来计算的
+     */
+    private final long origin;
+
+    /**
+     * 当前已经推进到的tick，所有 <= currentTick 的任务都已经被挪到ready链表上了
+     */
+    private long currentTick;
+
+    /**
+     * 每一层轮子的槽（链表头），buckets[level][slot]，高层在用到的时候才分配
+     */
+    private final Node<E>[][] buckets;
+
+    /**
+     * 每一层轮子的槽的尾节点，用于O(1)追加
+     */
+    private final Node<E>[][] tails;
+
+    /**
+     * 每一层的占用位图，第i位为1表示第i个槽非空
+     */
+    private final long[] occupied = new long[MAX_LEVELS];
+
+    /**
+     * 已经到期、等着被取走的任务
+     */
+    private Node<E> readyHead, readyTail;
+
+    /**
+     * 元素到节点的映射，用于O(1)的remove。按引用比较，同一个任务对象只对应一个节点。
+     */
+    private final IdentityHashMap<E, Node<E>> index = new IdentityHashMap<>();
+
+    private int count;
+
+    /**
+     * Leader-Follower模式中的leader，参见CDelayQueue
+     */
+    private Thread leader = null;
+
+    /**
+     * 使用1毫秒的tick创建时间轮
+     */
+    public TimingWheelDelayQueue() {
+        this(1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param tick 一格的时间长度，任务最多会晚这么久被取出
+     * @param unit tick的时间单位
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheelDelayQueue(long tick, TimeUnit unit) {
+        long nanos = unit.toNanos(tick);
+        if (nanos <= 0)
+            throw new IllegalArgumentException("tick must be positive");
+        this.tickNanos = nanos;
+        this.origin = System.nanoTime();
+        this.buckets = (Node<E>[][]) new Node<?>[MAX_LEVELS][];
+        this.tails = (Node<E>[][]) new Node<?>[MAX_LEVELS][];
+    }
+
+    /**
+     * 时间轮上的链表节点
+     */
+    static final class Node<E> {
+        final E item;
+        /**
+         * 到期的tick（向上取整，保证不会提前到期）。reschedule的时候会改
+         */
+        long tick;
+        int level;
+        int slot;
+        Node<E> prev;
+        Node<E> next;
+
+        Node(E item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+
+    /**
+     * 把now之后delay纳秒的时间点换算成tick，向上取整
+     */
+    private long toTick(long now, long delay) {
+        long elapsed = now - origin;
+        if (delay > 0 && elapsed + delay < 0)//溢出，按最远的时间算
+            elapsed = Long.MAX_VALUE;
+        else
+            elapsed += delay;
+        if (elapsed <= 0)
+            return 0;
+        long tick = elapsed / tickNanos;
+        return elapsed % tickNanos == 0 ? tick : tick + 1;
+    }
+
+    /**
+     * 把节点挂到它该在的地方：已经到期的挂到ready链表，否则挂到合适的层和槽上。
+     * 选层的规则是：找到最低的一层L，使得tick和currentTick在L层以上的位完全相同，
+     * 这样tick在L层上的槽号一定比当前槽号大，也就是在轮子的"前方"。
+     * Call only when holding lock.
+     */
+    private void place(Node<E> node) {
+        long tick = node.tick;
+        if (tick <= currentTick) {
+            linkReady(node);
+            return;
+        }
+        int level = 0;
+        while (level < MAX_LEVELS - 1
+                && (tick >>> (WHEEL_BITS * (level + 1))) != (currentTick >>> (WHEEL_BITS * (level + 1))))
+            level++;
+        int slot = (int) (tick >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+        Node<E>[] levelBuckets = buckets[level];
+        if (levelBuckets == null) {
+            //溢出轮在第一次用到的时候才创建
+            levelBuckets = buckets[level] = newBuckets();
+            tails[level] = newBuckets();
+        }
+        node.level = level;
+        node.slot = slot;
+        node.next = null;
+        Node<E> t = tails[level][slot];
+        node.prev = t;
+        if (t == null)
+            levelBuckets[slot] = node;
+        else
+            t.next = node;
+        tails[level][slot] = node;
+        occupied[level] |= 1L << slot;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Node<E>[] newBuckets() {
+        return (Node<E>[]) new Node<?>[WHEEL_SIZE];
+    }
+
+    private void linkReady(Node<E> node) {
+        node.level = READY;
+        node.next = null;
+        node.prev = readyTail;
+        if (readyTail == null)
+            readyHead = node;
+        else
+            readyTail.next = node;
+        readyTail = node;
+    }
+
+    /**
+     * 把节点从它所在的链表上摘掉，O(1)。Call only when holding lock.
+     */
+    private void unlink(Node<E> node) {
+        Node<E> p = node.prev, n = node.next;
+        if (node.level == READY) {
+            if (p == null)
+                readyHead = n;
+            else
+                p.next = n;
+            if (n == null)
+                readyTail = p;
+            else
+                n.prev = p;
+        } else {
+            int level = node.level, slot = node.slot;
+            if (p == null)
+                buckets[level][slot] = n;
+            else
+                p.next = n;
+            if (n == null)
+                tails[level][slot] = p;
+            else
+                n.prev = p;
+            if (buckets[level][slot] == null)
+                occupied[level] &= ~(1L << slot);
+        }
+        node.prev = node.next = null;
+    }
+
+    /**
+     * 下一个需要处理的tick：最低的那个非空层上，当前槽之后的第一个非空槽的起始tick。
+     * 低层的槽总是落在高层当前槽的范围内，所以找到的第一层就是最早的。
+     * 没有任何任务挂在轮子上时返回Long.MAX_VALUE。Call only when holding lock.
+     */
+    private long nextEventTick() {
+        for (int level = 0; level < MAX_LEVELS; level++) {
+            long bits = occupied[level];
+            if (bits == 0)
+                continue;
+            int shift = WHEEL_BITS * level;
+            int cur = (int) (currentTick >>> shift) & WHEEL_MASK;
+            long ahead = bits & (-2L << cur);
+            if (ahead == 0)
+                continue;
+            int slot = Long.numberOfTrailingZeros(ahead);
+            long page = shift + WHEEL_BITS >= Long.SIZE ? 0 : (currentTick >>> (shift + WHEEL_BITS)) << WHEEL_BITS;
+            return (page | slot) << shift;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * 把时间轮推进到now，沿途到点的槽里的任务重新分配（降级或者挪到ready链表）。
+     * 中间没有任务的tick直接跳过。Call only when holding lock.
+     */
+    private void advance(long now) {
+        long target = toTickFloor(now);
+        while (currentTick < target) {
+            long next = nextEventTick();
+            if (next > target) {
+                currentTick = target;
+                return;
+            }
+            currentTick = next;
+            //找到是哪一层的槽到点了：currentTick在该层以下的位全是0，且该层对应的槽非空
+            for (int level = MAX_LEVELS - 1; level >= 0; level--) {
+                int shift = WHEEL_BITS * level;
+                if (level > 0 && (currentTick & ((1L << shift) - 1)) != 0)
+                    continue;
+                int slot = (int) (currentTick >>> shift) & WHEEL_MASK;
+                if ((occupied[level] & (1L << slot)) == 0)
+                    continue;
+                cascade(level, slot);
+            }
+        }
+    }
+
+    /**
+     * 把now换算成tick，向下取整：只有整个tick都过去了才算到点
+     */
+    private long toTickFloor(long now) {
+        long elapsed = now - origin;
+        return elapsed <= 0 ? 0 : elapsed / tickNanos;
+    }
+
+    /**
+     * 把某一个槽里的任务全部取下来重新放置。Call only when holding lock.
+     */
+    private void cascade(int level, int slot) {
+        Node<E> p = buckets[level][slot];
+        buckets[level][slot] = null;
+        tails[level][slot] = null;
+        occupied[level] &= ~(1L << slot);
+        while (p != null) {
+            Node<E> next = p.next;
+            place(p);
+            p = next;
+        }
+    }
+
+    /**
+     * 取出并删除ready链表的第一个节点。Call only when holding lock.
+     */
+    private E pollReady() {
+        Node<E> first = readyHead;
+        if (first == null)
+            return null;
+        unlink(first);
+        index.remove(first.item);
+        count--;
+        return first.item;
+    }
+
+    /**
+     * 距离下一个需要处理的tick还有多少纳秒，没有任务时返回Long.MAX_VALUE。Call only when holding lock.
+     */
+    private long nanosUntilNextEvent(long now) {
+        long next = nextEventTick();
+        if (next == Long.MAX_VALUE)
+            return Long.MAX_VALUE;
+        //advance向下取整，过了next * tickNanos，第next格就会被处理；任务的tick是向上取整的，所以不会提前
+        if (next > Long.MAX_VALUE / tickNanos)
+            return Long.MAX_VALUE - 1;
+        return next * tickNanos - (now - origin);
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            //先取delay再读时钟，算出来的到期时间只会偏晚不会偏早
+            long delay = e.getDelay(NANOSECONDS);
+            long now = System.nanoTime();
+            advance(now);
+            Node<E> old = index.get(e);
+            if (old != null) {//同一个任务重复放入，先把旧的位置摘掉
+                unlink(old);
+                count--;
+            }
+            long before = readyHead != null ? currentTick : nextEventTick();
+            Node<E> node = new Node<>(e, toTick(now, delay));
+            place(node);
+            index.put(e, node);
+            count++;
+            //新任务比leader正在等的那个更早，就叫醒leader重新计算等待时间
+            if (node.level == READY || nextEventTick() < before) {
+                leader = null;
+                available.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 原地修改一个任务的到期时间：把节点从原来的槽上摘下来，换算出新的tick再挂到对应的槽上，O(1)，不分配新节点。
+     * @param task 队列里的任务
+     * @param delay 从现在开始的新延迟
+     * @return 任务不在队列里（已经到期被取走或者被删除了）返回false
+     */
+    public boolean reschedule(Task<?> task, long delay, TimeUnit unit) {
+        long nanos = unit.toNanos(delay);
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            Node<E> node = index.get(task);
+            if (node == null)
+                return false;
+            long now = System.nanoTime();
+            task.setDeadline(now + nanos);
+            advance(now);
+            unlink(node);
+            long before = readyHead != null ? currentTick : nextEventTick();
+            node.tick = toTick(now, nanos);
+            place(node);
+            if (node.level == READY || nextEventTick() < before) {
+                leader = null;
+                available.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(E e) {
+        offer(e);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) {
+        return offer(e);
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            for (;;) {
+                long now = System.nanoTime();
+                advance(now);
+                E first = pollReady();
+                if (first != null)
+                    return first;
+                long delay = nanosUntilNextEvent(now);
+                if (delay == Long.MAX_VALUE || leader != null)
+                    available.await();
+                else {
+                    Thread thisThread = Thread.currentThread();
+                    leader = thisThread;
+                    try {
+                        available.awaitNanos(delay);
+                    } finally {
+                        if (leader == thisThread)
+                            leader = null;
+                    }
+                }
+            }
+        } finally {
+            if (leader == null && count > 0)
+                available.signal();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            for (;;) {
+                long now = System.nanoTime();
+                advance(now);
+                E first = pollReady();
+                if (first != null)
+                    return first;
+                if (nanos <= 0)
+                    return null;
+                long delay = nanosUntilNextEvent(now);
+                if (nanos < delay || leader != null)
+                    nanos = available.awaitNanos(nanos);
+                else {
+                    Thread thisThread = Thread.currentThread();
+                    leader = thisThread;
+                    try {
+                        long timeLeft = available.awaitNanos(delay);
+                        nanos -= delay - timeLeft;
+                    } finally {
+                        if (leader == thisThread)
+                            leader = null;
+                    }
+                }
+            }
+        } finally {
+            if (leader == null && count > 0)
+                available.signal();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 只返回已经到期的任务，没有到期的返回null
+     */
+    @Override
+    public E poll() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            advance(System.nanoTime());
+            return pollReady();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 返回已经到期的第一个任务，没有到期的返回null。
+     * 时间轮不维护全局的顺序，找最早的未到期任务需要扫描，所以这里只看到期的部分。
+     */
+    @Override
+    public E peek() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            advance(System.nanoTime());
+            return readyHead == null ? null : readyHead.item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * O(1)地取消一个任务
+     */
+    @Override
+    public boolean remove(Object o) {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            Node<E> node = index.remove(o);
+            if (node == null)
+                return false;
+            unlink(node);
+            count--;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return index.containsKey(o);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        if (maxElements <= 0)
+            return 0;
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            advance(System.nanoTime());
+            int n = 0;
+            while (n < maxElements && readyHead != null) {
+                c.add(readyHead.item);   // In this order, in case add() throws.
+                pollReady();
+                ++n;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            for (int level = 0; level < MAX_LEVELS; level++) {
+                if (buckets[level] != null) {
+                    Arrays.fill(buckets[level], null);
+                    Arrays.fill(tails[level], null);
+                }
+                occupied[level] = 0;
+            }
+            readyHead = readyTail = null;
+            index.clear();
+            count = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Object[] toArray() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return index.keySet().toArray();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <T> T[] toArray(T[] a) {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return index.keySet().toArray(a);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 快照迭代器，不保证顺序
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Itr(toArray());
+    }
+
+    private class Itr implements Iterator<E> {
+        final Object[] array;
+        int cursor = 0;
+        int lastRet = -1;
+
+        Itr(Object[] array) {
+            this.array = array;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor < array.length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (cursor >= array.length)
+                throw new NoSuchElementException();
+            lastRet = cursor;
+            return (E) array[cursor++];
+        }
+
+        @Override
+        public void remove() {
+            if (lastRet < 0)
+                throw new IllegalStateException();
+            TimingWheelDelayQueue.this.remove(array[lastRet]);
+            lastRet = -1;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.importsource.concurrency.custom.queue.delay;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 每个任务一个线程的执行器，给阻塞型的延时任务用（HTTP回调、写数据库）
+ *
+ * 固定大小的线程池里，慢任务会把所有线程占住，后面到期的任务只能排队，触发延迟越来越大，
+ * 池子开多大也只能靠猜。这里每个任务都在自己的线程里跑，不存在排队。
+ *
+ * 运行在JDK21及以上时用虚拟线程（Executors.newVirtualThreadPerTaskExecutor，通过反射调用，
+ * 这样项目本身还可以用低版本编译）；低版本没有虚拟线程，退化成按需创建的守护线程池。
+ *
+ * maxConcurrency大于0时限制同时执行的任务数，比如保护下游的连接池：
+ * 1.虚拟线程：用一个信号量，在任务自己的线程里获取，分发线程永远不会被阻塞，
+ *   超出限制的任务挂在信号量上等，对虚拟线程来说这几乎没有代价。
+ * 2.平台线程：一个挂起的平台线程就是一个OS线程，同样的做法下一批N个任务到期就会建N个线程。
+ *   所以改用maxConcurrency个线程的线程池加无界队列，超出限制的任务在队列里排队，空闲的线程超时退出。
+ *
+ * 生命周期方法（shutdown、shutdownNow、awaitTermination等）都转给底层的ExecutorService。
+ * 虚拟线程在等信号量的时候被中断（比如shutdownNow），任务就不执行了，和线程池拒绝一样算作丢弃，
+ * 打印一个RejectedExecutionException并计入getDroppedCount。
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService {
+
+    private final ExecutorService delegate;
+
+    /**
+     * 只有用虚拟线程并且限制了并发数时才不为null
+     */
+    private final Semaphore permits;
+
+    private final boolean virtual;
+
+    /**
+     * 等信号量时被中断而没有执行的任务数
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param name 线程名前缀（只对平台线程有效）
+     * @param maxConcurrency 同时执行的任务数上限，小于等于0表示不限制
+     */
+    public VirtualThreadExecutor(String name, int maxConcurrency) {
+        ExecutorService es = newVirtualThreadPerTaskExecutor();
+        this.virtual = es != null;
+        if (es != null)
+            this.permits = maxConcurrency > 0 ? new Semaphore(maxConcurrency) : null;
+        else {
+            this.permits = null;
+            if (maxConcurrency > 0) {
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrency, maxConcurrency,
+                        60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory(name));
+                pool.allowCoreThreadTimeOut(true);
+                es = pool;
+            } else
+                es = Executors.newCachedThreadPool(new DaemonThreadFactory(name));
+        }
+        this.delegate = es;
+    }
+
+    /**
+     * JDK21以下返回null
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command == null)
+            throw new NullPointerException();
+        if (permits == null)
+            delegate.execute(command);
+        else
+            delegate.execute(new Limited(command));
+    }
+
+    /**
+     * 是否真的在用虚拟线程
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * 等信号量时被中断而没有执行的任务数
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    /**
+     * 只能返回还没开始执行的任务；已经在自己的线程里等信号量的任务会被中断并计入getDroppedCount
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+
+    private class Limited implements Runnable {
+        private final Runnable task;
+
+        Limited(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped.incrementAndGet();
+                new RejectedExecutionException("interrupted while waiting for a permit, task dropped: " + task)
+                        .printStackTrace();
+                return;
+            }
+            try {
+                task.run();
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String name) {
+            this.prefix = name + "-worker-";
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.importsource.concurrency.custom.queue.delay;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 工作窃取的定时任务调度器，思路和Executors.newWorkStealingPool()（参见WorkStealingThreadPoolDemo）一样
+ *
+ * TaskQueueDaemonThread里所有定时任务都进同一个延迟队列，所有分发线程抢同一把锁，到期以后只有leader一个线程被叫醒。
+ *
+ * 这里的做法是：
+ * 1.每个工作线程有自己的本地延迟队列（CDelayQueue）。工作线程执行的任务里再设置的定时任务放进它自己的队列，
+ *   其他线程设置的定时任务按线程散列到某一个工作线程的队列里。任务直接在工作线程上执行，不再转交线程池。
+ * 2.工作线程先取自己队列里到期的任务；自己没有到期的，就去别的工作线程的队列里偷已经到期的任务（poll只拿到期的）。
+ *   一个工作线程正在执行很长的任务时，它队列里到期的定时任务会被空闲的工作线程偷走，不会跟着一起晚。
+ * 3.空闲的时候还是Leader-Follower：只有leader按所有队列里最早的到期时间定时park，follower一直park到被叫醒，
+ *   这样一个定时任务到期只叫醒一个线程，不会所有空闲线程一起醒过来抢。leader拿到任务去执行之前叫醒一个follower接替它。
+ *   空闲线程把自己要睡到的时间点发布到wakeAt，放入任务的线程只有在新任务比leader的wakeAt更早的时候，
+ *   才用CAS改它的wakeAt并unpark它；没有leader时叫醒一个follower。每次最多叫醒一个。
+ *
+ * 注意：不同队列之间没有全局顺序，到期时间相近的任务谁先执行是不确定的。
+ */
+public class WorkStealingTimerScheduler {
+
+    /**
+     * wakeAt的取值：线程正在干活，不需要叫醒
+     */
+    private static final long RUNNING = Long.MIN_VALUE;
+
+    /**
+     * wakeAt的取值：线程正在扫描准备park，或者没有任何定时任务、会一直睡下去。比它早的任务都要叫醒它
+     */
+    private static final long IDLE = Long.MAX_VALUE;
+
+    private static final AtomicLongFieldUpdater<Worker> WAKE_AT =
+            AtomicLongFieldUpdater.newUpdater(Worker.class, "wakeAt");
+
+    private static final AtomicReferenceFieldUpdater<WorkStealingTimerScheduler, Worker> LEADER =
+            AtomicReferenceFieldUpdater.newUpdater(WorkStealingTimerScheduler.class, Worker.class, "leader");
+
+    final class Worker extends Thread {
+        final CDelayQueue<Task<Runnable>> queue = new CDelayQueue<Task<Runnable>>();
+
+        /**
+         * 空闲时要睡到的时间点（System.nanoTime），参见RUNNING和IDLE
+         */
+        volatile long wakeAt = RUNNING;
+
+        Worker(String name, int index) {
+            super(name + "-" + index);
+            setDaemon(true);
+        }
+
+        WorkStealingTimerScheduler owner() {
+            return WorkStealingTimerScheduler.this;
+        }
+
+        @Override
+        public void run() {
+            while (!shutdown) {
+                Task<Runnable> t = queue.poll();
+                if (t == null)
+                    t = steal(this);
+                if (t != null) {
+                    //要去干活了，把leader让给一个follower，否则执行期间到期的任务没人等
+                    if (leader == this && LEADER.compareAndSet(WorkStealingTimerScheduler.this, this, null))
+                        wakeFollower(System.nanoTime());
+                    runTask(t);
+                    continue;
+                }
+                //先声明自己要睡了，再扫描所有队列：扫描期间放入的任务一定会看到IDLE并来叫醒
+                wakeAt = IDLE;
+                long next = earliestDeadline();
+                if (next != IDLE && next - System.nanoTime() <= 0) {
+                    wakeAt = RUNNING;
+                    continue;
+                }
+                boolean timed = false;
+                if (next != IDLE) {
+                    Worker l = leader;
+                    timed = l == this || (l == null && LEADER.compareAndSet(WorkStealingTimerScheduler.this, null, this));
+                    //已经有leader了，但它可能是在这个任务放入之前扫描的，要睡到更晚的时候
+                    if (!timed && (l = leader) != null && l != this) {
+                        long at = l.wakeAt;
+                        if (at != RUNNING && next < at && WAKE_AT.compareAndSet(l, at, next))
+                            LockSupport.unpark(l);
+                    }
+                }
+                if (WAKE_AT.compareAndSet(this, IDLE, timed ? next : IDLE) && !shutdown) {
+                    if (timed)
+                        LockSupport.parkNanos(this, next - System.nanoTime());
+                    else
+                        LockSupport.park(this);
+                }
+                wakeAt = RUNNING;
+            }
+        }
+    }
+
+    private final Worker[] workers;
+
+    private volatile boolean shutdown;
+
+    /**
+     * 按最早的到期时间定时park的那个空闲线程，没有时为null
+     */
+    private volatile Worker leader;
+
+    /**
+     * 工作线程数取CPU核数
+     */
+    public WorkStealingTimerScheduler(String name) {
+        this(name, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param name 工作线程名字的前缀
+     * @param parallelism 工作线程数
+     */
+    public WorkStealingTimerScheduler(String name, int parallelism) {
+        if (parallelism <= 0)
+            throw new IllegalArgumentException();
+        workers = new Worker[parallelism];
+        for (int i = 0; i < parallelism; i++)
+            workers[i] = new Worker(name, i);
+    }
+
+    public void start() {
+        for (Worker w : workers)
+            w.start();
+    }
+
+    /**
+     * 停止所有工作线程，队列里还没执行的任务丢弃
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (Worker w : workers)
+            LockSupport.unpark(w);
+    }
+
+    /**
+     * 设置一个定时任务。在工作线程上调用时放进这个线程自己的队列
+     * @param delay 延迟
+     * @param unit 时间单位
+     * @param task 任务
+     * @return 放入队列的Task，用于cancel
+     */
+    public Task<Runnable> schedule(long delay, TimeUnit unit, Runnable task) {
+        if (task == null)
+            throw new NullPointerException();
+        if (shutdown)
+            throw new IllegalStateException("shutdown");
+        Task<Runnable> t = new Task<Runnable>(unit.toNanos(delay), task);
+        localQueue().offer(t);
+        signalIdle(t.getDeadline());
+        return t;
+    }
+
+    /**
+     * 取消一个还没执行的定时任务
+     * @return 任务还在队列里并且被删除了返回true
+     */
+    public boolean cancel(Task<Runnable> task) {
+        //CDelayQueue.remove按heapIndex定位，不在这个队列里的任务只比较一次就返回
+        for (Worker w : workers)
+            if (w.queue.remove(task))
+                return true;
+        return false;
+    }
+
+    /**
+     * 所有队列里还没执行的任务数
+     */
+    public int size() {
+        int n = 0;
+        for (Worker w : workers)
+            n += w.queue.size();
+        return n;
+    }
+
+    /**
+     * 当前线程是这个调度器的工作线程就返回它自己的队列，否则按线程散列到某一个工作线程的队列
+     */
+    private CDelayQueue<Task<Runnable>> localQueue() {
+        Thread current = Thread.currentThread();
+        if (current instanceof Worker && ((Worker) current).owner() == this)
+            return ((Worker) current).queue;
+        long id = current.getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return workers[((h ^ (h >>> 16)) & 0x7fffffff) % workers.length].queue;
+    }
+
+    /**
+     * 新任务比leader要睡到的时间早，就把leader的wakeAt改成deadline并叫醒它；
+     * 没有leader，或者leader正要去干活，就叫醒一个follower
+     */
+    private void signalIdle(long deadline) {
+        for (;;) {
+            Worker l = leader;
+            long at;
+            if (l == null || (at = l.wakeAt) == RUNNING) {
+                wakeFollower(deadline);
+                return;
+            }
+            if (deadline >= at)
+                return;
+            if (WAKE_AT.compareAndSet(l, at, deadline)) {
+                LockSupport.unpark(l);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 叫醒一个一直在睡的空闲线程，让它重新扫描，有任务的话由它来当leader
+     */
+    private void wakeFollower(long deadline) {
+        for (Worker w : workers) {
+            if (w.wakeAt == IDLE && WAKE_AT.compareAndSet(w, IDLE, deadline)) {
+                LockSupport.unpark(w);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 从别的工作线程的队列里偷一个已经到期的任务，从随机位置开始扫，避免所有线程都去偷同一个队列
+     */
+    private Task<Runnable> steal(Worker self) {
+        int n = workers.length;
+        int start = ThreadLocalRandom.current().nextInt(n);
+        for (int i = 0; i < n; i++) {
+            Worker victim = workers[(start + i) % n];
+            if (victim == self)
+                continue;
+            Task<Runnable> t = victim.queue.poll();
+            if (t != null)
+                return t;
+        }
+        return null;
+    }
+
+    /**
+     * 所有队列里最早的到期时间，全部为空时返回IDLE
+     */
+    private long earliestDeadline() {
+        long min = IDLE;
+        for (Worker w : workers) {
+            Task<Runnable> head = w.queue.peek();
+            if (head != null && head.getDeadline() < min)
+                min = head.getDeadline();
+        }
+        return min;
+    }
+
+    private void runTask(Task<Runnable> t) {
+        try {
+            t.getTask().run();
+        } catch (Throwable e) {
+            e.printStackTrace();
+        }
+    }
+}